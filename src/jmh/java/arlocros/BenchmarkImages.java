@@ -0,0 +1,193 @@
+package arlocros;
+
+import org.jboss.netty.buffer.ChannelBuffers;
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.opencv.core.Point;
+import org.opencv.core.Point3;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.highgui.Highgui;
+import org.opencv.imgproc.Imgproc;
+import org.ros.message.MessageFactory;
+import org.ros.node.NodeConfiguration;
+import sensor_msgs.Image;
+
+import java.nio.ByteOrder;
+
+/**
+ * Images and image messages for the benchmarks. Camera images show a board of markers like
+ * stage.cfg: the markers 4x4_1 to 4x4_24 in six rows of four in the z = 0 plane. As on the stage,
+ * the markers are found in the inverted image. The benchmarks run in the project directory, where
+ * the marker patterns and images are found.
+ */
+final class BenchmarkImages {
+
+  static final int BOARD_MARKERS = 24;
+  static final float MARKER_SIZE = 0.2f;
+  private static final int BOARD_COLUMNS = 4;
+  private static final double MARKER_SPACING = 0.3;
+  // pose of the board in the camera frame, about 2.6 m in front of the camera and slightly tilted
+  private static final double[] BOARD_RVEC = {2.95, 0.15, 0.05};
+  private static final double[] BOARD_TVEC = {-0.45, -0.75, 2.6};
+  private static final Scalar BACKGROUND = Scalar.all(110);
+
+  // bytes of a received message in front of the pixel data
+  private static final int HEADER_BYTES = 64;
+  private static final MessageFactory MESSAGE_FACTORY =
+      NodeConfiguration.newPrivate().getTopicMessageFactory();
+
+  private BenchmarkImages() {}
+
+  /** Parses a size given as a benchmark parameter, e.g. "640x480". */
+  static int[] parseSize(String size) {
+    final String[] dimensions = size.split("x");
+    return new int[] {Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1])};
+  }
+
+  /** Creates an image of uniformly distributed random pixels. */
+  static Mat noise(int width, int height, int type) {
+    final Mat image = new Mat(height, width, type);
+    Core.randu(image, 0, 256);
+    return image;
+  }
+
+  /**
+   * Creates an image message with the pixels of a continuous Mat. As in a received message, the
+   * pixel data is a slice of a larger buffer, and each row may be followed by padding.
+   */
+  static Image message(Mat image, String encoding, int rowPadding) {
+    final int rows = image.rows();
+    final int rowBytes = image.cols() * (int) image.elemSize();
+    final int step = rowBytes + rowPadding;
+    final byte[] pixels = new byte[rows * rowBytes];
+    image.get(0, 0, pixels);
+    final byte[] serialized = new byte[HEADER_BYTES + rows * step];
+    for (int row = 0; row < rows; row++) {
+      System.arraycopy(pixels, row * rowBytes, serialized, HEADER_BYTES + row * step, rowBytes);
+    }
+
+    final Image message = MESSAGE_FACTORY.newFromType(Image._TYPE);
+    message.setWidth(image.cols());
+    message.setHeight(rows);
+    message.setStep(step);
+    message.setEncoding(encoding);
+    message.setData(
+        ChannelBuffers.wrappedBuffer(ByteOrder.LITTLE_ENDIAN, serialized)
+            .slice(HEADER_BYTES, rows * step));
+    return message;
+  }
+
+  static String patternFile(int marker) {
+    return "marker_patterns/4x4_" + (marker + 1) + ".patt";
+  }
+
+  /**
+   * Returns the corners of the board markers in the order of {@link MarkerConfig}: x, y and z of
+   * the upper left, upper right, lower right and lower left corner of each marker.
+   */
+  static double[] boardCorners() {
+    final double half = MARKER_SIZE / 2;
+    final double[] offsets = {-half, half, half, half, half, -half, -half, -half};
+    final double[] corners = new double[12 * BOARD_MARKERS];
+    for (int marker = 0; marker < BOARD_MARKERS; marker++) {
+      final double x = marker % BOARD_COLUMNS * MARKER_SPACING;
+      final double y = -(marker / BOARD_COLUMNS) * MARKER_SPACING;
+      for (int c = 0; c < 4; c++) {
+        corners[12 * marker + 3 * c] = x + offsets[2 * c];
+        corners[12 * marker + 3 * c + 1] = y + offsets[2 * c + 1];
+      }
+    }
+    return corners;
+  }
+
+  /** The camera matrix of a camera with a horizontal field of view of about 65 degrees. */
+  static Mat cameraMatrix(int width, int height) {
+    final double focalLength = 0.8 * width;
+    final Mat cameraMatrix = new Mat(3, 3, CvType.CV_64F);
+    cameraMatrix.put(0, 0, focalLength, 0, width / 2.0, 0, focalLength, height / 2.0, 0, 0, 1);
+    return cameraMatrix;
+  }
+
+  static Mat boardRvec() {
+    final Mat rvec = new Mat(3, 1, CvType.CV_64F);
+    rvec.put(0, 0, BOARD_RVEC);
+    return rvec;
+  }
+
+  static Mat boardTvec() {
+    final Mat tvec = new Mat(3, 1, CvType.CV_64F);
+    tvec.put(0, 0, BOARD_TVEC);
+    return tvec;
+  }
+
+  /**
+   * Projects the board corners into the image of the camera at the board pose.
+   *
+   * @return x and y of each corner in the order of {@link #boardCorners()}
+   */
+  static double[] projectBoard(Mat cameraMatrix) {
+    final double[] corners = boardCorners();
+    final Point3[] objectPoints = new Point3[corners.length / 3];
+    for (int i = 0; i < objectPoints.length; i++) {
+      objectPoints[i] = new Point3(corners[3 * i], corners[3 * i + 1], corners[3 * i + 2]);
+    }
+    final MatOfPoint2f imagePoints = new MatOfPoint2f();
+    Calib3d.projectPoints(
+        new MatOfPoint3f(objectPoints),
+        boardRvec(),
+        boardTvec(),
+        cameraMatrix,
+        new MatOfDouble(),
+        imagePoints);
+    final double[] projected = new double[2 * objectPoints.length];
+    final Point[] points = imagePoints.toArray();
+    for (int i = 0; i < points.length; i++) {
+      projected[2 * i] = points[i].x;
+      projected[2 * i + 1] = points[i].y;
+    }
+    return projected;
+  }
+
+  /**
+   * Renders the board as seen by the camera at the board pose into an RGB image, on a gray
+   * background with some noise.
+   */
+  static Mat boardImage(int width, int height) {
+    final Mat image = new Mat(height, width, CvType.CV_8UC3, BACKGROUND);
+    final double[] projected = projectBoard(cameraMatrix(width, height));
+    for (int marker = 0; marker < BOARD_MARKERS; marker++) {
+      final Mat markerImage = Highgui.imread("marker_png/4x4_384_" + (marker + 1) + ".ps.png");
+      // the marker is the whole image, its white margin is the border of the marker once the
+      // image is inverted
+      final double side = markerImage.cols();
+      final MatOfPoint2f square =
+          new MatOfPoint2f(
+              new Point(0, 0), new Point(side, 0), new Point(side, side), new Point(0, side));
+      final Point[] quad = new Point[4];
+      for (int c = 0; c < 4; c++) {
+        quad[c] = new Point(projected[8 * marker + 2 * c], projected[8 * marker + 2 * c + 1]);
+      }
+      final Mat transform = Imgproc.getPerspectiveTransform(square, new MatOfPoint2f(quad));
+      Imgproc.warpPerspective(
+          markerImage,
+          image,
+          transform,
+          image.size(),
+          Imgproc.INTER_LINEAR,
+          Imgproc.BORDER_TRANSPARENT,
+          BACKGROUND);
+      markerImage.release();
+    }
+    Imgproc.GaussianBlur(image, image, new Size(3, 3), 0);
+    final Mat noise = noise(width, height, CvType.CV_8UC3);
+    Core.scaleAdd(noise, 0.1, image, image);
+    noise.release();
+    return image;
+  }
+}
@@ -0,0 +1,76 @@
+package arlocros;
+
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The preprocessing stage on the RGB frames of the benchmark board. Without a binarization mode it
+ * runs the chain of OpenCV calls of the contrast threshold: luminance transform, threshold and the
+ * conversion back to RGB. The other modes run the single pass of the {@link Binarizer}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class BinarizerBenchmark {
+
+  // a threshold of 128 on the luminance, as the fixed threshold of the binarizer
+  private static final double CONTRAST_LEVEL = 384;
+  private static final int FIXED_THRESHOLD = 128;
+  private static final int BLOCK_RADIUS = 15;
+  private static final int OFFSET = 7;
+
+  @Param({"640x480", "1920x1080"})
+  public String size;
+
+  @Param({"NONE", "FIXED", "OTSU", "ADAPTIVE"})
+  public Binarizer.Mode mode;
+
+  private Mat image;
+  private Mat binary;
+  // null without a binarization mode
+  private Binarizer binarizer;
+
+  @Setup
+  public void setUp() {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    final int[] dimensions = BenchmarkImages.parseSize(size);
+    image = BenchmarkImages.boardImage(dimensions[0], dimensions[1]);
+    binary = new Mat();
+    binarizer =
+        mode == Binarizer.Mode.NONE
+            ? null
+            : Binarizer.create(mode, FIXED_THRESHOLD, BLOCK_RADIUS, OFFSET, false);
+  }
+
+  @TearDown
+  public void tearDown() {
+    image.release();
+    binary.release();
+  }
+
+  @Benchmark
+  public Mat preprocess() {
+    if (binarizer != null) {
+      return binarizer.binarize(image, binary);
+    }
+    Utils.tresholdContrastBlackWhite(image, binary, CONTRAST_LEVEL, false);
+    return binary;
+  }
+}
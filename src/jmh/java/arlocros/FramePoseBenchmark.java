@@ -0,0 +1,143 @@
+package arlocros;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.ros.message.Time;
+import org.ros.rosjava_geometry.Quaternion;
+import org.ros.rosjava_geometry.Transform;
+import org.ros.rosjava_geometry.Vector3;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The conversion of a solved pose into the transforms the node publishes: {@link FramePose} on the
+ * rotation vector compared with the former conversion through the Rodrigues rotation matrix and
+ * Euler angles. Both start from the rvec and tvec Mats of the pose solver, as the publish stage
+ * does, and cycle through a set of random poses.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FramePoseBenchmark {
+
+  private static final int POSES = 1024;
+  // largest difference in meters of the camera positions of both conversions
+  private static final double MAX_POSITION_DIFFERENCE = 1e-9;
+
+  private Mat[] rvecs;
+  private Mat[] tvecs;
+  private final double[] rvecValues = new double[3];
+  private final double[] tvecValues = new double[3];
+  private final Time captureTime = new Time();
+  private int pose;
+
+  @Setup
+  public void setUp() {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    final Random random = new Random(42);
+    rvecs = new Mat[POSES];
+    tvecs = new Mat[POSES];
+    for (int i = 0; i < POSES; i++) {
+      rvecs[i] = new Mat(3, 1, CvType.CV_64F);
+      rvecs[i].put(0, 0, random.nextGaussian(), random.nextGaussian(), random.nextGaussian());
+      tvecs[i] = new Mat(3, 1, CvType.CV_64F);
+      tvecs[i].put(0, 0, random.nextGaussian(), random.nextGaussian(), 2 + random.nextDouble());
+    }
+
+    // both conversions have to place the camera at the same position for the comparison to hold
+    for (int i = 0; i < POSES; i++) {
+      rvecs[i].get(0, 0, rvecValues);
+      tvecs[i].get(0, 0, tvecValues);
+      final Vector3 position =
+          FramePose.create(rvecValues, tvecValues, captureTime).mapToCamera().getTranslation();
+      final Vector3 formerPosition = rodriguesEuler(rvecs[i], tvecs[i])[1].getTranslation();
+      final double difference =
+          Math.abs(position.getX() - formerPosition.getX())
+              + Math.abs(position.getY() - formerPosition.getY())
+              + Math.abs(position.getZ() - formerPosition.getZ());
+      if (difference > MAX_POSITION_DIFFERENCE) {
+        throw new IllegalStateException("The conversions differ by " + difference + " m");
+      }
+    }
+  }
+
+  private int nextPose() {
+    pose = (pose + 1) % POSES;
+    return pose;
+  }
+
+  @Benchmark
+  public FramePose quaternion() {
+    final int i = nextPose();
+    rvecs[i].get(0, 0, rvecValues);
+    tvecs[i].get(0, 0, tvecValues);
+    return FramePose.create(rvecValues, tvecValues, captureTime);
+  }
+
+  @Benchmark
+  public void rodriguesEuler(Blackhole blackhole) {
+    final int i = nextPose();
+    final Transform[] transforms = rodriguesEuler(rvecs[i], tvecs[i]);
+    blackhole.consume(transforms[0]);
+    blackhole.consume(transforms[1]);
+  }
+
+  /**
+   * The former conversion of FramePose.
+   *
+   * @return the camera to marker and the map to camera transform
+   */
+  private static Transform[] rodriguesEuler(Mat rvec, Mat tvec) {
+    final Mat rotationMatrix = new Mat(3, 3, CvType.CV_64F);
+    Calib3d.Rodrigues(rvec, rotationMatrix);
+    final double[] r = new double[9];
+    rotationMatrix.get(0, 0, r);
+    final double[] t = new double[3];
+    tvec.get(0, 0, t);
+
+    /*
+     * http://euclideanspace.com/maths/geometry/rotations/conversions/matrixToEuler/index.htm
+     *
+     * heading = atan2(-m20,m00) attitude = asin(m10) bank = atan2(-m12,m11)
+     */
+    final Transform cameraToMarker =
+        new Transform(
+            new Vector3(t[0], t[1], t[2]),
+            quaternionFromEuler(
+                Math.atan2(-r[5], r[4]), Math.atan2(-r[6], r[0]), Math.asin(r[3])));
+
+    // the map to camera transform is the inverse: rotation R^T and translation -R^T * tvec
+    final Transform mapToCamera =
+        new Transform(
+            new Vector3(
+                -(r[0] * t[0] + r[3] * t[1] + r[6] * t[2]),
+                -(r[1] * t[0] + r[4] * t[1] + r[7] * t[2]),
+                -(r[2] * t[0] + r[5] * t[1] + r[8] * t[2])),
+            quaternionFromEuler(
+                Math.atan2(-r[7], r[4]), Math.atan2(-r[2], r[0]), Math.asin(r[1])));
+    return new Transform[] {cameraToMarker, mapToCamera};
+  }
+
+  private static Quaternion quaternionFromEuler(double bankX, double headingY, double attitudeZ) {
+    final QuaternionHelper q = new QuaternionHelper();
+    q.setFromEuler(bankX, headingY, attitudeZ);
+    return new Quaternion(q.getX(), q.getY(), q.getZ(), q.getW());
+  }
+}
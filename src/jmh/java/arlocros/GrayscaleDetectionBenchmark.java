@@ -0,0 +1,114 @@
+package arlocros;
+
+import jp.nyatla.nyartoolkit.core.NyARCode;
+import jp.nyatla.nyartoolkit.core.NyARException;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import sensor_msgs.Image;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Frames per second of the RGB and the grayscale detection chain on the same rgb8 frames of the
+ * benchmark board: decoding, the black and white contrast threshold and the marker detection, which
+ * hands the image to NyARToolkit through an RGB raster or the {@link LuminanceSensor}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GrayscaleDetectionBenchmark {
+
+  // a threshold of 128 on the luminance, the markers are found in the inverted image
+  private static final double CONTRAST_LEVEL = 384;
+  private static final int PATTERN_SIZE = 16;
+
+  @Param({"640x480", "1920x1080"})
+  public String size;
+
+  private Image message;
+  private ImageDecoder decoder;
+  private Mat image;
+  private Mat binary;
+  private MarkerDetector rgbDetector;
+  private MarkerDetector grayDetector;
+  private final DetectedMarkers markers = DetectedMarkers.create();
+
+  @Setup
+  public void setUp() throws IOException, NyARException {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    final int[] dimensions = BenchmarkImages.parseSize(size);
+    final Mat board = BenchmarkImages.boardImage(dimensions[0], dimensions[1]);
+    message = BenchmarkImages.message(board, ImageDecoder.RGB8, 0);
+    board.release();
+    decoder = ImageDecoder.create();
+    image = new Mat();
+    binary = new Mat();
+
+    final int[] markerIds = new int[BenchmarkImages.BOARD_MARKERS];
+    final List<NyARCode> codes = new ArrayList<>();
+    for (int marker = 0; marker < markerIds.length; marker++) {
+      markerIds[marker] = marker;
+      try (InputStream pattern = new FileInputStream(BenchmarkImages.patternFile(marker))) {
+        codes.add(NyARCode.createFromARPattFile(pattern, PATTERN_SIZE, PATTERN_SIZE));
+      }
+    }
+    rgbDetector =
+        MarkerDetector.create(
+            markerIds, codes, BenchmarkImages.MARKER_SIZE, dimensions[0], dimensions[1]);
+    grayDetector =
+        MarkerDetector.create(
+            markerIds, codes, BenchmarkImages.MARKER_SIZE, dimensions[0], dimensions[1]);
+    // both chains have to find the same markers for the comparison to hold
+    final int rgbMarkers = rgb().size();
+    final int grayMarkers = gray().size();
+    if (rgbMarkers != grayMarkers) {
+      throw new IllegalStateException(
+          "RGB chain found " + rgbMarkers + " markers, grayscale chain " + grayMarkers);
+    }
+  }
+
+  @TearDown
+  public void tearDown() {
+    image.release();
+    binary.release();
+  }
+
+  @Benchmark
+  public DetectedMarkers rgb() throws NyARException {
+    decoder.decode(message, image, CvType.CV_8UC3);
+    Utils.tresholdContrastBlackWhite(image, binary, CONTRAST_LEVEL, true);
+    markers.clear();
+    rgbDetector.detect(binary, 0, 0, null, markers);
+    return markers;
+  }
+
+  @Benchmark
+  public DetectedMarkers gray() throws NyARException {
+    decoder.decodeLuminance(message, image);
+    Utils.tresholdContrastBlackWhite(image, binary, CONTRAST_LEVEL, true);
+    markers.clear();
+    grayDetector.detect(binary, 0, 0, null, markers);
+    return markers;
+  }
+}
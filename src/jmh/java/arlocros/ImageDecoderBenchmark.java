@@ -0,0 +1,80 @@
+package arlocros;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import sensor_msgs.Image;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of rgb8 image messages with the {@link ImageDecoder}, compared with the conversion the
+ * node used before. Run with {@code -prof gc}, gc.alloc.rate.norm gives the bytes allocated per
+ * frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImageDecoderBenchmark {
+
+  @Param({"640x480", "1920x1080"})
+  public String size;
+
+  /** Bytes of padding after each row. The previous conversion ignores them. */
+  @Param({"0", "64"})
+  public int rowPadding;
+
+  private Image message;
+  private ImageDecoder decoder;
+  private Mat image;
+
+  @Setup
+  public void setUp() {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    final int[] dimensions = BenchmarkImages.parseSize(size);
+    final Mat pixels = BenchmarkImages.noise(dimensions[0], dimensions[1], CvType.CV_8UC3);
+    message = BenchmarkImages.message(pixels, ImageDecoder.RGB8, rowPadding);
+    pixels.release();
+    decoder = ImageDecoder.create();
+    image = new Mat();
+  }
+
+  @TearDown
+  public void tearDown() {
+    image.release();
+  }
+
+  /** Utils.matFromImage before the decoder: two copies on the heap and a new Mat per frame. */
+  @Benchmark
+  public Mat previousMatFromImage() {
+    byte[] imageInBytes = message.getData().array();
+    imageInBytes =
+        Arrays.copyOfRange(imageInBytes, message.getData().arrayOffset(), imageInBytes.length);
+    final Mat cvImage = new Mat(message.getHeight(), message.getWidth(), CvType.CV_8UC3);
+    cvImage.put(0, 0, imageInBytes);
+    // the node left the Mat to the finalizer, release it so that native memory does not pile up
+    cvImage.release();
+    return cvImage;
+  }
+
+  @Benchmark
+  public Mat decode() {
+    return decoder.decode(message, image, CvType.CV_8UC3);
+  }
+}
@@ -0,0 +1,151 @@
+package arlocros;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@link PlanarPoseSolver} compared with OpenCV's solvePnPRansac as ComputePose calls it, on
+ * the correspondences of a frame of the benchmark board. The image points are the projected
+ * marker corners with Gaussian noise, and a misidentified marker has the object points of its
+ * neighbour on the board. The setup checks that both solvers find a pose; RANSAC keeps the pose of
+ * its best sample refined on the inliers, which is up to 0.15 m off the true position here, where
+ * the planar solver is within a few millimeters.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class PoseSolverBenchmark {
+
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+  private static final double NOISE_PIXELS = 0.5;
+  // the defaults of the node
+  private static final int RANSAC_ITERATIONS = 300;
+  private static final double REPROJECTION_ERROR = 5.0;
+  private static final int RANSAC_MIN_INLIERS = 16;
+  // largest distance in meters of a planar solution from the true position
+  private static final double MAX_POSITION_ERROR = 0.05;
+
+  /** Number of markers seen, spread over the board. */
+  @Param({"4", "24"})
+  public int markerCount;
+
+  /** Number of markers identified as their neighbour. */
+  @Param({"0", "1"})
+  public int misidentified;
+
+  private double[] objectCoordinates;
+  private double[] imageCoordinates;
+  private MatOfPoint3f objectPoints;
+  private MatOfPoint2f imagePoints;
+  private Mat cameraMatrix;
+  private MatOfDouble distCoeffs;
+  private Mat rvec;
+  private Mat tvec;
+  private Mat inliers;
+  private PlanarPoseSolver planarSolver;
+
+  @Setup
+  public void setUp() {
+    System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    cameraMatrix = BenchmarkImages.cameraMatrix(WIDTH, HEIGHT);
+    final double[] boardCorners = BenchmarkImages.boardCorners();
+    final double[] projected = BenchmarkImages.projectBoard(cameraMatrix);
+    final Random random = new Random(42);
+    objectCoordinates = new double[12 * markerCount];
+    imageCoordinates = new double[8 * markerCount];
+    for (int m = 0; m < markerCount; m++) {
+      final int id = m * BenchmarkImages.BOARD_MARKERS / markerCount;
+      final int objectId = m < misidentified ? (id + 1) % BenchmarkImages.BOARD_MARKERS : id;
+      System.arraycopy(boardCorners, 12 * objectId, objectCoordinates, 12 * m, 12);
+      for (int i = 0; i < 8; i++) {
+        imageCoordinates[8 * m + i] = projected[8 * id + i] + NOISE_PIXELS * random.nextGaussian();
+      }
+    }
+    objectPoints = new MatOfPoint3f();
+    objectPoints.create(4 * markerCount, 1, CvType.CV_32FC3);
+    objectPoints.put(0, 0, objectCoordinates);
+    imagePoints = new MatOfPoint2f();
+    imagePoints.create(4 * markerCount, 1, CvType.CV_32FC2);
+    imagePoints.put(0, 0, imageCoordinates);
+    // an undistorted camera
+    distCoeffs = new MatOfDouble(0, 0, 0, 0, 0);
+    rvec = new Mat(3, 1, CvType.CV_64F);
+    tvec = new Mat(3, 1, CvType.CV_64F);
+    inliers = new Mat();
+    planarSolver =
+        PlanarPoseSolver.create(boardCorners, cameraMatrix, distCoeffs, REPROJECTION_ERROR);
+
+    // both solvers have to find a pose for the comparison to hold
+    if (planarSolver.solve(objectCoordinates, imageCoordinates, markerCount, rvec, tvec) == 0) {
+      throw new IllegalStateException("The planar solver found no pose.");
+    }
+    checkPosition(tvec);
+    ransac();
+    if (inliers.rows() == 0) {
+      throw new IllegalStateException("RANSAC found no pose.");
+    }
+  }
+
+  private static void checkPosition(Mat solvedTvec) {
+    final double[] solved = new double[3];
+    solvedTvec.get(0, 0, solved);
+    final double[] expected = new double[3];
+    BenchmarkImages.boardTvec().get(0, 0, expected);
+    final double error =
+        Math.sqrt(
+            (solved[0] - expected[0]) * (solved[0] - expected[0])
+                + (solved[1] - expected[1]) * (solved[1] - expected[1])
+                + (solved[2] - expected[2]) * (solved[2] - expected[2]));
+    if (error > MAX_POSITION_ERROR) {
+      throw new IllegalStateException(
+          String.format("The planar solver is %.3f m off the board pose.", error));
+    }
+  }
+
+  @Benchmark
+  public Mat planar() {
+    planarSolver.solve(objectCoordinates, imageCoordinates, markerCount, rvec, tvec);
+    return tvec;
+  }
+
+  @Benchmark
+  public Mat ransac() {
+    Calib3d.solvePnPRansac(
+        objectPoints,
+        imagePoints,
+        cameraMatrix,
+        distCoeffs,
+        rvec,
+        tvec,
+        false,
+        RANSAC_ITERATIONS,
+        (float) REPROJECTION_ERROR,
+        RANSAC_MIN_INLIERS,
+        inliers,
+        Calib3d.CV_P3P);
+    return tvec;
+  }
+}
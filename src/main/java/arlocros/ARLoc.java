@@ -1,14 +1,28 @@
 package arlocros;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import geometry_msgs.PoseStamped;
+import jp.nyatla.nyartoolkit.core.NyARException;
 import nav_msgs.Odometry;
 import org.ros.namespace.GraphName;
 import org.ros.node.AbstractNodeMain;
 import org.ros.node.ConnectedNode;
 import org.ros.node.topic.Publisher;
+import std_msgs.Float64;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /** @author Hoang Tung Dinh */
 public class ARLoc extends AbstractNodeMain {
+  // rate at which the combined pose of several cameras is checked for updates
+  private static final double COMBINED_POSE_FREQUENCY = 60;
+  // sub-topic of a pose topic on which the capture to publish latency is published
+  private static final String LATENCY_TOPIC_SUFFIX = "/latency";
+
   @Override
   public GraphName getDefaultNodeName() {
     return GraphName.of("rosjava/imshow");
@@ -20,8 +34,7 @@ public class ARLoc extends AbstractNodeMain {
     final Publisher<PoseStamped> markerPosePubliser =
         connectedNode.newPublisher(parameter.markerPoseTopicName(), PoseStamped._TYPE);
 
-    final PoseEstimator poseEstimator =
-        ArMarkerPoseEstimator.create(connectedNode, parameter, markerPosePubliser);
+    final PoseEstimator poseEstimator = createPoseEstimator(connectedNode, parameter, markerPosePubliser);
 
     final BebopOdomVelocityEstimator velocityEstimator = BebopOdomVelocityEstimator.create();
 
@@ -37,4 +50,70 @@ public class ARLoc extends AbstractNodeMain {
         FusedLocalization.create(
             poseEstimator, velocityEstimator, fusedPosePublisher, 40, connectedNode);
   }
+
+  /**
+   * Creates one pose estimator per camera. The cameras share the marker map, the transformation
+   * service and a pool of detection threads. With several cameras, each camera publishes its pose
+   * on a sub-topic of the marker pose topic and the combined pose is published on the topic itself.
+   * The latency of each camera is published on a sub-topic of its pose topic.
+   */
+  private static PoseEstimator createPoseEstimator(
+      ConnectedNode connectedNode, Parameter parameter, Publisher<PoseStamped> markerPosePublisher) {
+    final MarkerMap markerMap;
+    try {
+      markerMap = MarkerMap.load(parameter.markerConfigFile(), parameter.patternDirectory());
+    } catch (NyARException | IOException e) {
+      throw new IllegalStateException("Cannot load the marker patterns.", e);
+    }
+    // start to listen to transform messages in /tf in order to feed the Transformer and lookup
+    // transforms
+    final TransformationService transformationService =
+        TransformationService.create(connectedNode, parameter.tfHistorySize());
+    final List<CameraConfig> cameras = parameter.cameras();
+    // daemon threads, so that the pool does not keep the JVM alive after the node shut down
+    final ExecutorService detectionPool =
+        Executors.newFixedThreadPool(
+            Math.min(cameras.size(), Runtime.getRuntime().availableProcessors()),
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("marker-detection-%d").build());
+
+    if (cameras.size() == 1) {
+      return ArMarkerPoseEstimator.create(
+          connectedNode,
+          parameter,
+          cameras.get(0),
+          markerMap,
+          transformationService,
+          detectionPool,
+          markerPosePublisher,
+          connectedNode.<Float64>newPublisher(
+              parameter.markerPoseTopicName() + LATENCY_TOPIC_SUFFIX, Float64._TYPE),
+          true);
+    }
+
+    final ImmutableList.Builder<ArMarkerPoseEstimator> cameraPoseEstimators =
+        ImmutableList.builder();
+    for (final CameraConfig camera : cameras) {
+      final String cameraPoseTopicName = parameter.markerPoseTopicName() + "/" + camera.name();
+      final Publisher<PoseStamped> cameraPosePublisher =
+          connectedNode.newPublisher(cameraPoseTopicName, PoseStamped._TYPE);
+      cameraPoseEstimators.add(
+          ArMarkerPoseEstimator.create(
+              connectedNode,
+              parameter,
+              camera,
+              markerMap,
+              transformationService,
+              detectionPool,
+              cameraPosePublisher,
+              connectedNode.<Float64>newPublisher(
+                  cameraPoseTopicName + LATENCY_TOPIC_SUFFIX, Float64._TYPE),
+              false));
+    }
+    return CombinedPoseEstimator.create(
+        cameraPoseEstimators.build(),
+        markerPosePublisher,
+        transformationService,
+        COMBINED_POSE_FREQUENCY,
+        connectedNode);
+  }
 }
@@ -27,13 +27,11 @@ import geometry_msgs.Vector3;
 import jp.nyatla.nyartoolkit.core.NyARException;
 import org.apache.commons.lang.exception.ExceptionUtils;
 import org.apache.commons.logging.Log;
-import org.opencv.calib3d.Calib3d;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDouble;
 import org.opencv.core.Point3;
-import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.imgproc.Imgproc;
 import org.ros.concurrent.CancellableLoop;
@@ -46,14 +44,20 @@ import org.ros.node.topic.Subscriber;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import sensor_msgs.CameraInfo;
+import std_msgs.Float64;
 import tf2_msgs.TFMessage;
 import visualization_msgs.Marker;
 
 import javax.annotation.Nullable;
-import java.io.FileNotFoundException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
@@ -64,13 +68,22 @@ public final class ArMarkerPoseEstimator implements PoseEstimator {
 
 	private static final Logger logger = LoggerFactory.getLogger(ArMarkerPoseEstimator.class);
 
+	// number of frames circulating through the processing pipeline
+	private static final int PIPELINE_FRAMES = 4;
+	// interval between two statistics log messages
+	private static final long STATISTICS_INTERVAL_MS = 10000;
+
 	private CameraParams camp;
-	private Mat image;
-	private Mat rvec;
-	private MatOfDouble tvec;
+	// poses solved by the pipeline, numbered in the order of the frames
+	private final SnapshotExchange<FramePose> poses = SnapshotExchange.create();
 
 	@Nullable
 	private Parameter parameter;
+	private final CameraConfig camera;
+	private final MarkerMap markerMap;
+	private final TransformationService transformationService;
+	private final ExecutorService detectionPool;
+	private final boolean publishMapToOdom;
 	private MarkerConfig markerConfig;
 	protected org.ros.rosjava_geometry.Transform last_pose;
 	protected Time last_timestamp;
@@ -79,25 +92,61 @@ public final class ArMarkerPoseEstimator implements PoseEstimator {
 	private static Log log;
 
 	private final Publisher<PoseStamped> posePublisher;
+	private final Publisher<Float64> latencyPublisher;
 
 	private AtomicReference<PoseStamped> mostRecentPose;
-
-	private ArMarkerPoseEstimator(final ConnectedNode connectedNode, Parameter parameter,
-			Publisher<PoseStamped> posePublisher) {
+	private final AtomicLong unsupportedImages = new AtomicLong();
+	private final AtomicLong publishedPoses = new AtomicLong();
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+	private volatile long lastLatencyNanos;
+
+	private ArMarkerPoseEstimator(final ConnectedNode connectedNode, Parameter parameter, CameraConfig camera,
+			MarkerMap markerMap, TransformationService transformationService, ExecutorService detectionPool,
+			Publisher<PoseStamped> posePublisher, Publisher<Float64> latencyPublisher, boolean publishMapToOdom) {
 		mostRecentPose = new AtomicReference<>();
 		this.parameter = parameter;
+		this.camera = camera;
+		this.markerMap = markerMap;
+		this.transformationService = transformationService;
+		this.detectionPool = detectionPool;
 		this.posePublisher = posePublisher;
+		this.latencyPublisher = latencyPublisher;
+		this.publishMapToOdom = publishMapToOdom;
 		Executors.newSingleThreadExecutor().submit(new Runnable() {
 			@Override
 			public void run() {
-				start(connectedNode);
+				try {
+					start(connectedNode);
+				} catch (RuntimeException e) {
+					// an exception would end up in the discarded future, and the
+					// node would keep running without processing any image,
+					// e.g. with a non-planar map for the planar solver
+					logger.error("Cannot start the pose estimator of camera " + camera.name()
+							+ ", shutting down the node.", e);
+					connectedNode.shutdown();
+				}
 			}
 		});
 	}
 
-	public static ArMarkerPoseEstimator create(
-			ConnectedNode connectedNode, Parameter parameter, Publisher<PoseStamped> posePublisher) {
-		return new ArMarkerPoseEstimator(connectedNode, parameter, posePublisher);
+	/**
+	 * Creates the pose estimator of one camera. The marker map, the
+	 * transformation service and the detection pool may be shared with the
+	 * estimators of other cameras.
+	 *
+	 * @param latencyPublisher
+	 *            receives the time in seconds from the capture of an image
+	 *            to the publication of the pose computed from it
+	 * @param publishMapToOdom
+	 *            whether this estimator publishes the map to odom transform,
+	 *            only one estimator per node should do so
+	 */
+	public static ArMarkerPoseEstimator create(ConnectedNode connectedNode, Parameter parameter,
+			CameraConfig camera, MarkerMap markerMap, TransformationService transformationService,
+			ExecutorService detectionPool, Publisher<PoseStamped> posePublisher, Publisher<Float64> latencyPublisher,
+			boolean publishMapToOdom) {
+		return new ArMarkerPoseEstimator(connectedNode, parameter, camera, markerMap, transformationService,
+				detectionPool, posePublisher, latencyPublisher, publishMapToOdom);
 	}
 
 	private void start(final ConnectedNode connectedNode) {
@@ -108,135 +157,246 @@ public final class ArMarkerPoseEstimator implements PoseEstimator {
 		// launch file)
 		log = connectedNode.getLog();
 
-		// Read Marker Config
-		markerConfig = MarkerConfig.createFromConfig(parameter.markerConfigFile(), parameter.patternDirectory());
-
-		// setup rotation vector and translation vector storing output of the
-		// localization
-		rvec = new Mat(3, 1, CvType.CV_64F);
-		tvec = new MatOfDouble(1.0, 1.0, 1.0);
-
-		camp = getCameraInfo(connectedNode, parameter);
+		markerConfig = markerMap.markerConfig();
 
-		// start to listen to transform messages in /tf in order to feed the
-		// Transformer and lookup transforms
-		final TransformationService transformationService = TransformationService.create(connectedNode);
+		camp = getCameraInfo(connectedNode, camera);
 
 		// Subscribe to Image
-		Subscriber<sensor_msgs.Image> subscriberToImage = connectedNode.newSubscriber(parameter.cameraImageTopic(),
+		Subscriber<sensor_msgs.Image> subscriberToImage = connectedNode.newSubscriber(camera.imageTopic(),
 				sensor_msgs.Image._TYPE);
 
 		ComputePose computePose = null;
 		try {
 			final Mat cameraMatrix = CameraParams.getCameraMatrix(camp);
 			final MatOfDouble distCoeffs = CameraParams.getDistCoeffs(camp);
-			computePose = ComputePose.create(markerConfig, new Size(camp.width(), camp.height()), cameraMatrix,
-					distCoeffs, this.parameter.visualization());
+			computePose = ComputePose.create(markerMap, new Size(camp.width(), camp.height()), cameraMatrix,
+					distCoeffs, this.parameter);
 		} catch (NyARException e) {
 			logger.info("Cannot initialize ComputePose", e);
-		} catch (FileNotFoundException e) {
-			logger.info("Cannot find file when initialize ComputePose", e);
 		}
 		final ComputePose poseProcessor = computePose;
+		final ImageDecoder imageDecoder = ImageDecoder.create();
+		// the subscriber thread only hands the images over, so that a slow
+		// pose computation skips stale images instead of queueing them up
+		final FrameMailbox<sensor_msgs.Image> imageMailbox = FrameMailbox.create();
 		subscriberToImage.addMessageListener(new MessageListener<sensor_msgs.Image>() {
 
 			@Override
 			public void onNewMessage(sensor_msgs.Image message) {
-				//
-				if (!message.getEncoding().toLowerCase().equals("rgb8")) {
-					log.error("Sorry, " + message.getEncoding() + " Image encoding is not supported! EXITING");
-					System.exit(-1);
+				imageMailbox.post(message);
+			}
+		});
+
+		// process the images in a pipeline of stages running on their own
+		// threads, a fixed number of frames circulates through the stages
+		final BlockingQueue<Frame> freeFrames = new ArrayBlockingQueue<>(PIPELINE_FRAMES);
+		final BlockingQueue<Frame> decodedFrames = new ArrayBlockingQueue<>(PIPELINE_FRAMES);
+		final BlockingQueue<Frame> preprocessedFrames = new ArrayBlockingQueue<>(PIPELINE_FRAMES);
+		final BlockingQueue<Frame> detectedFrames = new ArrayBlockingQueue<>(PIPELINE_FRAMES);
+		// without corner refinement the solve stage takes the detected frames
+		final BlockingQueue<Frame> refinedFrames = parameter.subpixelRefinement()
+				? new ArrayBlockingQueue<Frame>(PIPELINE_FRAMES) : detectedFrames;
+		final BlockingQueue<Frame> solvedFrames = new ArrayBlockingQueue<>(PIPELINE_FRAMES);
+		for (int i = 0; i < PIPELINE_FRAMES; i++) {
+			freeFrames.add(Frame.create());
+		}
+		final List<PipelineStage> stages = new ArrayList<>();
+		stages.add(new PipelineStage("decode", freeFrames, decodedFrames, freeFrames) {
+
+			// luminance of images converted to RGB, reused for every frame
+			private final Mat luminance = new Mat();
+
+			@Override
+			protected void await(Frame frame) throws InterruptedException {
+				frame.message = imageMailbox.take();
+				logger.trace("Processing image received {} ms ago", imageMailbox.lastAgeMillis());
+			}
+
+			@Override
+			protected boolean process(Frame frame) {
+				final sensor_msgs.Image message = frame.message;
+				// all outputs of the frame are stamped with the capture time,
+				// the receive time stands in for drivers not setting it
+				final Time stamp = message.getHeader().getStamp();
+				frame.captureTime = stamp == null || stamp.isZero() ? connectedNode.getCurrentTime() : stamp;
+				// drop images we cannot decode, but keep the node running
+				final String encoding = message.getEncoding().toLowerCase();
+				if (!ImageDecoder.isSupported(encoding)) {
+					if (unsupportedImages.incrementAndGet() == 1) {
+						log.error("Sorry, " + message.getEncoding() + " Image encoding is not supported! Dropping "
+								+ "images..");
+					}
+					return false;
+				}
+				final Mat image = frame.image;
+				frame.detectionImage = image;
+				if (parameter.grayscaleDetection()) {
+					// keep the whole detection chain on luminance
+					imageDecoder.decodeLuminance(message, image);
+				} else if (encoding.equals(ImageDecoder.RGB8)) {
+					imageDecoder.decode(message, image, CvType.CV_8UC3);
+				} else {
+					// the detector only needs the luminance of other encodings
+					imageDecoder.decodeLuminance(message, luminance);
+					Imgproc.cvtColor(luminance, image, Imgproc.COLOR_GRAY2RGB);
+				}
+				return true;
+			}
+		});
+		final Binarizer binarizer = parameter.binarization() == Binarizer.Mode.NONE ? null
+				: Binarizer.create(parameter);
+		stages.add(new PipelineStage("preprocess", decodedFrames, preprocessedFrames, freeFrames) {
+
+			@Override
+			protected boolean process(Frame frame) {
+				if (binarizer != null) {
+					// single pass to a black and white image instead of the
+					// steps below
+					frame.detectionImage = binarizer.binarize(frame.image, frame.binary);
+					return true;
+				}
+				// the steps below write to the binary image, the camera image
+				// stays unmodified for the corner refinement
+				final Mat image = frame.image;
+				final Mat binary = frame.binary;
+				// uncomment to add more contrast to the image
+				if (parameter.blackWhiteContrastLevel() > 0) {
+					log.trace("using BlackWhiteContrastLevel");
+					Utils.tresholdContrastBlackWhite(image, binary, parameter.blackWhiteContrastLevel(),
+							parameter.invertBlackWhiteColor());
+					frame.detectionImage = binary;
 				}
-				if (camp != null) {
-					try {
-						//
-						image = Utils.matFromImage(message);
-						// uncomment to add more contrast to the image
-						if (parameter.blackWhiteContrastLevel() > 0) {
-							log.trace("using BlackWhiteContrastLevel");
-							Utils.tresholdContrastBlackWhite(image, parameter.blackWhiteContrastLevel(),
-									parameter.invertBlackWhiteColor());
-						}
-						if (parameter.useThreshold()) {
-							Imgproc.threshold(image, image, 200, 255, Imgproc.THRESH_BINARY);
-						}
-						// Mat cannyimg = new Mat(image.height(), image.width(),
-						// CvType.CV_8UC3);
-						// Imgproc.Canny(image, cannyimg, 10, 100);
-						// Imshow.show(cannyimg);
-
-						// image.convertTo(image, -1, 1.5, 0);
-						// setup camera matrix and return vectors
-						// compute pose
-						if (poseProcessor.computePose(rvec, tvec, image)) {
-							// notify publisher threads (pose and tf, see below)
-							synchronized (tvec) {
-								tvec.notifyAll();
-							}
-						}
-
-					} catch (Exception e) {
-						logger.info("An exception occurs.", e);
+				if (parameter.useThreshold()) {
+					Imgproc.threshold(frame.detectionImage, binary, 200, 255, Imgproc.THRESH_BINARY);
+					frame.detectionImage = binary;
+				}
+				// Mat cannyimg = new Mat(image.height(), image.width(),
+				// CvType.CV_8UC3);
+				// Imgproc.Canny(image, cannyimg, 10, 100);
+				// Imshow.show(cannyimg);
+
+				// image.convertTo(image, -1, 1.5, 0);
+				return true;
+			}
+		});
+		stages.add(new PipelineStage("detect", preprocessedFrames, detectedFrames, freeFrames) {
+
+			@Override
+			protected boolean process(final Frame frame) throws Exception {
+				// the detection pool bounds the number of cameras detecting
+				// at the same time
+				detectionPool.submit(new Callable<Void>() {
+
+					@Override
+					public Void call() throws NyARException {
+						poseProcessor.detect(frame.detectionImage, frame.image, frame.markers);
+						return null;
 					}
+				}).get();
+				// the image is still shown if no marker was found
+				return !frame.markers.isEmpty() || parameter.visualization();
+			}
+		});
+		final CornerRefiner cornerRefiner = parameter.subpixelRefinement() ? CornerRefiner.create() : null;
+		if (cornerRefiner != null) {
+			stages.add(new PipelineStage("refine", detectedFrames, refinedFrames, freeFrames) {
+
+				@Override
+				protected boolean process(Frame frame) {
+					// the detectors report integer corners, refine them in the
+					// camera image
+					cornerRefiner.refine(frame.image, frame.markers, parameter.subpixelWindow());
+					return true;
 				}
+			});
+		}
+		stages.add(new PipelineStage("solve", refinedFrames, solvedFrames, freeFrames) {
+
+			@Override
+			protected boolean process(Frame frame) {
+				return poseProcessor.solvePose(frame.detectionImage, frame.markers, frame.result).poseFound();
 			}
 		});
+		stages.add(new PipelineStage("publish", solvedFrames, freeFrames, freeFrames) {
+
+			private final double[] rvecValues = new double[3];
+			private final double[] tvecValues = new double[3];
 
-		// publish tf CAMERA_FRAME_NAME --> MARKER_FRAME_NAME
-		final Publisher<tf2_msgs.TFMessage> tfPublisherCamToMarker = connectedNode.newPublisher("tf",
+			@Override
+			protected boolean process(Frame frame) {
+				// convert the pose once for all outputs and hand it to the
+				// output loop (see below)
+				frame.result.rvec().get(0, 0, rvecValues);
+				frame.result.tvec().get(0, 0, tvecValues);
+				poses.publish(FramePose.create(rvecValues, tvecValues, frame.captureTime));
+				return true;
+			}
+		});
+		if (poseProcessor != null) {
+			for (final PipelineStage stage : stages) {
+				connectedNode.executeCancellableLoop(stage);
+			}
+		}
+
+		// publish each pose as tf CAMERA_FRAME_NAME --> MARKER_FRAME_NAME,
+		// tf map --> odom and on the pose topic
+		final Publisher<tf2_msgs.TFMessage> tfPublisher = connectedNode.newPublisher("tf",
 				tf2_msgs.TFMessage._TYPE);
+		final SnapshotExchange.Cursor<FramePose> poseCursor = poses.newCursor();
 		connectedNode.executeCancellableLoop(new CancellableLoop() {
 
 			@Override
 			protected void loop() throws InterruptedException {
-
-				synchronized (tvec) {
-					tvec.wait();
+				// poses solved while the previous one was published are
+				// skipped and counted by the cursor
+				final FramePose pose = poseCursor.take().value();
+				publishTransform(connectedNode, tfPublisher, pose.cameraToMarker(), pose.captureTime(),
+						camera.frameName(), camera.markerFrameName());
+				if (publishMapToOdom) {
+					publishMapToOdom(connectedNode, tfPublisher, pose);
 				}
+				publishPose(connectedNode, pose);
+				recordLatency(connectedNode, pose.captureTime());
+			}
+		});
+
+		// log statistics of the camera pipeline
+		connectedNode.executeCancellableLoop(new CancellableLoop() {
 
-				QuaternionHelper q = new QuaternionHelper();
-
-				/*
-				 * http://euclideanspace.com/maths/geometry/rotations/
-				 * conversions/matrixToEuler/index.htm
-				 * http://stackoverflow.com/questions/12933284/rodrigues-into-
-				 * eulerangles-and-vice-versa
-				 *
-				 * heading = atan2(-m20,m00) attitude = asin(m10) bank =
-				 * atan2(-m12,m11)
-				 */
-				// convert output rotation vector rvec to rotation matrix R
-				Mat R = new Mat(3, 3, CvType.CV_32FC1);
-				Calib3d.Rodrigues(rvec, R);
-				// get rotations around X,Y,Z from rotation matrix R
-				double bankX = Math.atan2(-R.get(1, 2)[0], R.get(1, 1)[0]);
-				double headingY = Math.atan2(-R.get(2, 0)[0], R.get(0, 0)[0]);
-				double attitudeZ = Math.asin(R.get(1, 0)[0]);
-				// convert Euler angles to quarternion
-				q.setFromEuler(bankX, headingY, attitudeZ);
-
-				// set information to message
-				TFMessage tfmessage = tfPublisherCamToMarker.newMessage();
-				TransformStamped posestamped = connectedNode.getTopicMessageFactory()
-						.newFromType(geometry_msgs.TransformStamped._TYPE);
-				Transform transform = posestamped.getTransform();
-
-				Quaternion orientation = transform.getRotation();
-				Vector3 point = transform.getTranslation();
-				point.setX(tvec.get(0, 0)[0]);
-				point.setY(tvec.get(1, 0)[0]);
-				point.setZ(tvec.get(2, 0)[0]);
-
-				orientation.setW(q.getW());
-				orientation.setX(q.getX());
-				orientation.setY(q.getY());
-				orientation.setZ(q.getZ());
-				posestamped.getHeader().setFrameId(parameter.cameraFrameName());
-				posestamped.setChildFrameId(parameter.markerFrameName());
-				posestamped.getHeader().setStamp(connectedNode.getCurrentTime());
-				// frame_id too
-				tfmessage.getTransforms().add(posestamped);
-				tfPublisherCamToMarker.publish(tfmessage);
+			@Override
+			protected void loop() throws InterruptedException {
+				Thread.sleep(STATISTICS_INTERVAL_MS);
+				logger.debug("Images: {}", imageMailbox);
+				for (final PipelineStage stage : stages) {
+					logger.debug("Pipeline stage {}", stage);
+				}
+				logger.debug("Dropped images with unsupported encoding: {}", unsupportedImages.get());
+				logger.debug("Published poses: {} of {} solved", poseCursor, poses.sequence());
+				logger.debug(String.format("Capture to publish latency: %.1f ms last, %.1f ms on average",
+						lastLatencyNanos / 1.0E06, meanLatencyMillis()));
+				if (poseProcessor != null) {
+					logger.debug("Marker search: {} full image scans, {} region of interest scans",
+							poseProcessor.fullScans(), poseProcessor.roiScans());
+					logger.debug(String.format(
+							"Marker detectors: %d built in %.1f ms, per frame setup %.3f ms on average",
+							poseProcessor.detectorSetups(), poseProcessor.detectorSetupMillis(),
+							poseProcessor.meanFrameSetupMillis()));
+					logger.debug(String.format(
+							"Visibility prefilter: %d frames, %.1f markers on average, %d searched again",
+							poseProcessor.prefilteredFrames(), poseProcessor.meanPrefilteredMarkers(),
+							poseProcessor.prefilterMisses()));
+					logger.debug(String.format(
+							"Pose solver: %d tracked in %.3f ms, %d full in %.3f ms on average, %d tracking fallbacks",
+							poseProcessor.trackedSolves(), poseProcessor.meanTrackedSolveMillis(),
+							poseProcessor.fullSolves(), poseProcessor.meanFullSolveMillis(),
+							poseProcessor.trackingFallbacks()));
+					if (poseProcessor.markerRansac() != null) {
+						logger.debug("Marker RANSAC: {}", poseProcessor.markerRansac());
+					}
+				}
+				if (cornerRefiner != null) {
+					logger.debug("Corner refinement: {}", cornerRefiner);
+				}
 			}
 		});
 
@@ -259,7 +419,7 @@ public final class ArMarkerPoseEstimator implements PoseEstimator {
 					// (e.g. map or odom) the node will consume very high CPU
 					// and will fail after a short time. The markers are
 					// probably published in the wrong way.
-					markermessage.getHeader().setFrameId(parameter.markerFrameName());
+					markermessage.getHeader().setFrameId(camera.markerFrameName());
 					markermessage.setId(i);
 					i++;
 					markermessage.setType(visualization_msgs.Marker.SPHERE);
@@ -291,243 +451,183 @@ public final class ArMarkerPoseEstimator implements PoseEstimator {
 			}
 		});
 
-		// publish tf map --> odom
-		final Publisher<tf2_msgs.TFMessage> tfPublisherMapToOdom = connectedNode.newPublisher("tf",
-				tf2_msgs.TFMessage._TYPE);
-		connectedNode.executeCancellableLoop(new CancellableLoop() {
+	}
 
-			@Override
-			protected void loop() throws InterruptedException {
+	private static void publishTransform(ConnectedNode connectedNode, Publisher<TFMessage> tfPublisher,
+			org.ros.rosjava_geometry.Transform transform, Time stamp, String frameId, String childFrameId) {
+		// set information to message
+		TFMessage tfMessage = tfPublisher.newMessage();
+		TransformStamped transformStamped = connectedNode.getTopicMessageFactory()
+				.newFromType(geometry_msgs.TransformStamped._TYPE);
+		Transform transformMessage = transformStamped.getTransform();
+
+		Quaternion orientation = transformMessage.getRotation();
+		Vector3 vector = transformMessage.getTranslation();
+		vector.setX(transform.getTranslation().getX());
+		vector.setY(transform.getTranslation().getY());
+		vector.setZ(transform.getTranslation().getZ());
+
+		orientation.setW(transform.getRotationAndScale().getW());
+		orientation.setX(transform.getRotationAndScale().getX());
+		orientation.setY(transform.getRotationAndScale().getY());
+		orientation.setZ(transform.getRotationAndScale().getZ());
+		transformStamped.getHeader().setFrameId(frameId);
+		transformStamped.setChildFrameId(childFrameId);
+		transformStamped.getHeader().setStamp(stamp);
+		tfMessage.getTransforms().add(transformStamped);
+		tfPublisher.publish(tfMessage);
+	}
 
-				// since this is an infinite loop, wait to be notified if new
-				// image was processed
-				synchronized (tvec) {
-					tvec.wait();
-				}
+	/**
+	 * Publishes tf map --> odom computed from map to camera_rgb_optical_frame
+	 * and odom to camera_rgb_optical_frame.
+	 */
+	private void publishMapToOdom(ConnectedNode connectedNode, Publisher<TFMessage> tfPublisher, FramePose pose) {
+		final org.ros.rosjava_geometry.Transform transform_cam_odom = lookupCameraTransform("odom",
+				pose.captureTime());
+		if (transform_cam_odom == null) {
+			// no result can be computed
+			return;
+		}
+		// multiply results
+		org.ros.rosjava_geometry.Transform result = org.ros.rosjava_geometry.Transform.identity();
+		result = result.multiply(pose.mapToCamera());
+		result = result.multiply(transform_cam_odom);
+		publishTransform(connectedNode, tfPublisher, result, pose.captureTime(), "map", "odom");
+	}
 
-				// compute transform map to odom from map to
-				// camera_rgb_optical_frame and odom to camera_rgb_optical_frame
-
-				// map to camera_rgb_optical_frame
-				Mat tvec_map_cam = new MatOfDouble(1.0, 1.0, 1.0);
-				QuaternionHelper q = new QuaternionHelper();
-				// get rotation matrix R from solvepnp output rotation vector
-				// rvec
-				Mat R = new Mat(3, 3, CvType.CV_32FC1);
-				Calib3d.Rodrigues(rvec, R);
-				// transpose R, because we need the transformation from
-				// world(map) to camera
-				R = R.t();
-				// get rotation around X,Y,Z from R in radiants
-				double bankX = Math.atan2(-R.get(1, 2)[0], R.get(1, 1)[0]);
-				double headingY = Math.atan2(-R.get(2, 0)[0], R.get(0, 0)[0]);
-				double attitudeZ = Math.asin(R.get(1, 0)[0]);
-				q.setFromEuler(bankX, headingY, attitudeZ);
-				// compute translation vector from world (map) to cam
-				// tvec_map_cam
-				Core.multiply(R, new Scalar(-1), R); // R=-R
-				Core.gemm(R, tvec, 1, new Mat(), 0, tvec_map_cam, 0); // tvec_map_cam=R*tvec
-
-				org.ros.rosjava_geometry.Quaternion rotation = new org.ros.rosjava_geometry.Quaternion(q.getX(),
-						q.getY(), q.getZ(), q.getW());
-				double x = tvec_map_cam.get(0, 0)[0];
-				double y = tvec_map_cam.get(1, 0)[0];
-				double z = tvec_map_cam.get(2, 0)[0];
-				// create a Transform Object that hold the transform map to cam
-				org.ros.rosjava_geometry.Vector3 translation = new org.ros.rosjava_geometry.Vector3(x, y, z);
-				org.ros.rosjava_geometry.Transform transform_map_cam = new org.ros.rosjava_geometry.Transform(
-						translation, rotation);
-
-				// odom to camera_rgb_optical_frame
-				GraphName sourceFrame = GraphName.of(parameter.cameraFrameName());
-				GraphName targetFrame = GraphName.of("odom");
-				org.ros.rosjava_geometry.Transform transform_cam_odom = null;
-				if (transformationService.canTransform(targetFrame, sourceFrame)) {
-					try {
-						transform_cam_odom = transformationService.lookupTransform(targetFrame, sourceFrame);
-					} catch (Exception e) {
-						log.error(ExceptionUtils.getStackTrace(e));
-						log.info("Cloud not get transformation from " + parameter.cameraFrameName() + " to " + "odom! "
-								+ "However, " + "will continue..");
-						return;
+	/**
+	 * Publishes the pose of base_link in the map frame, unless it is rejected as
+	 * implausible.
+	 */
+	private void publishPose(ConnectedNode connectedNode, FramePose framePose) {
+		final org.ros.rosjava_geometry.Transform transform_cam_base = lookupCameraTransform("base_link",
+				framePose.captureTime());
+		if (transform_cam_base == null) {
+			// no result can be computed
+			return;
+		}
+
+		// multiply results
+		org.ros.rosjava_geometry.Transform current_pose = org.ros.rosjava_geometry.Transform.identity();
+		current_pose = current_pose.multiply(framePose.mapToCamera());
+		current_pose = current_pose.multiply(transform_cam_base);
+
+		// check for plausibility of the pose by checking if movement
+		// exceeds max speed (defined) of the robot
+		if (parameter.badPoseReject()) {
+			Time current_timestamp = framePose.captureTime();
+			double maxspeed = 5;
+			boolean goodpose = false;
+			// if (current_pose != null && current_timestamp != null) {
+			if (last_pose != null && last_timestamp != null) {
+				// check speed of movement between last and current pose
+				double distance = PoseCompare.distance(current_pose, last_pose);
+				double timedelta = PoseCompare.timedelta(current_timestamp, last_timestamp);
+				if ((distance / timedelta) < maxspeed) {
+					if (smoothing) {
+						double xold = last_pose.getTranslation().getX();
+						double yold = last_pose.getTranslation().getY();
+						double zold = last_pose.getTranslation().getZ();
+						double xnew = current_pose.getTranslation().getX();
+						double ynew = current_pose.getTranslation().getY();
+						double znew = current_pose.getTranslation().getZ();
+						final org.ros.rosjava_geometry.Vector3 smoothTranslation = new org.ros.rosjava_geometry.Vector3(
+								(xold * 2 + xnew) / 3, (yold * 2 + ynew) / 3, (zold * 2 + znew) / 3);
+						current_pose = new org.ros.rosjava_geometry.Transform(smoothTranslation,
+								current_pose.getRotationAndScale());
+						last_pose = current_pose;
 					}
+					last_pose = current_pose;
+					last_timestamp = current_timestamp;
+					goodpose = true;
 				} else {
-					log.info("Cloud not get transformation from " + parameter.cameraFrameName() + " to " + "odom! "
-							+ "However, will " + "continue..");
-					// cancel this loop..no result can be computed
-					return;
+					log.info("distance " + distance + " time: " + timedelta + " --> Pose rejected");
 				}
-				// multiply results
-				org.ros.rosjava_geometry.Transform result = org.ros.rosjava_geometry.Transform.identity();
-				result = result.multiply(transform_map_cam);
-				result = result.multiply(transform_cam_odom);
-
-				// set information to ROS message
-				TFMessage tfMessage = tfPublisherMapToOdom.newMessage();
-				TransformStamped transformStamped = connectedNode.getTopicMessageFactory()
-						.newFromType(geometry_msgs.TransformStamped._TYPE);
-				Transform transform = transformStamped.getTransform();
-
-				Quaternion orientation = transform.getRotation();
-				Vector3 vector = transform.getTranslation();
-				vector.setX(result.getTranslation().getX());
-				vector.setY(result.getTranslation().getY());
-				vector.setZ(result.getTranslation().getZ());
-
-				orientation.setW(result.getRotationAndScale().getW());
-				orientation.setX(result.getRotationAndScale().getX());
-				orientation.setY(result.getRotationAndScale().getY());
-				orientation.setZ(result.getRotationAndScale().getZ());
-				transformStamped.getHeader().setFrameId("map");
-				transformStamped.setChildFrameId("odom");
-				transformStamped.getHeader().setStamp(connectedNode.getCurrentTime());
-				// frame_id too
-				tfMessage.getTransforms().add(transformStamped);
-				tfPublisherMapToOdom.publish(tfMessage);
-				// System.exit(0);
-			}
-		});
-
-		// Publish Pose
 
-		connectedNode.executeCancellableLoop(new CancellableLoop() {
-
-			@Override
-			protected void loop() throws InterruptedException {
+			} else {
+				last_pose = current_pose;
+				last_timestamp = current_timestamp;
+			}
+			// }
+			// bad pose rejection
+			if (!goodpose) {
+				return;
+			}
+		}
 
-				// since this is an infinite loop, wait here to be notified if
-				// new image was processed
-				synchronized (tvec) {
-					tvec.wait();
-				}
-				final QuaternionHelper q = new QuaternionHelper();
-
-				// convert rotation vector result of solvepnp to rotation matrix
-				Mat R = new Mat(3, 3, CvType.CV_32FC1);
-				Calib3d.Rodrigues(rvec, R);
-				// see publishers before for documentation
-				final Mat tvec_map_cam = new MatOfDouble(1.0, 1.0, 1.0);
-				R = R.t();
-				final double bankX = Math.atan2(-R.get(1, 2)[0], R.get(1, 1)[0]);
-				final double headingY = Math.atan2(-R.get(2, 0)[0], R.get(0, 0)[0]);
-				final double attitudeZ = Math.asin(R.get(1, 0)[0]);
-				q.setFromEuler(bankX, headingY, attitudeZ);
-				Core.multiply(R, new Scalar(-1), R);
-				Core.gemm(R, tvec, 1, new Mat(), 0, tvec_map_cam, 0);
-				final org.ros.rosjava_geometry.Quaternion rotation = new org.ros.rosjava_geometry.Quaternion(q.getX(),
-						q.getY(), q.getZ(), q.getW());
-				final double x = tvec_map_cam.get(0, 0)[0];
-				final double y = tvec_map_cam.get(1, 0)[0];
-				final double z = tvec_map_cam.get(2, 0)[0];
-
-				final org.ros.rosjava_geometry.Vector3 translation = new org.ros.rosjava_geometry.Vector3(x, y, z);
-				final org.ros.rosjava_geometry.Transform transform_map_cam = new org.ros.rosjava_geometry.Transform(
-						translation, rotation);
-
-				// odom to camera_rgb_optical_frame
-				final GraphName sourceFrame = GraphName.of(parameter.cameraFrameName());
-				final GraphName targetFrame = GraphName.of("base_link");
-				org.ros.rosjava_geometry.Transform transform_cam_base = null;
-
-				if (transformationService.canTransform(targetFrame, sourceFrame)) {
-					try {
-						transform_cam_base = transformationService.lookupTransform(targetFrame, sourceFrame);
-					} catch (Exception e) {
-						log.error(ExceptionUtils.getStackTrace(e));
-						log.info("Cloud not get transformation from " + parameter.cameraFrameName() + " to "
-								+ "base_link! " + "However, will continue..");
-						// cancel this loop..no result can be computed
-						return;
-					}
-				} else {
-					log.info("Cloud not get transformation from " + parameter.cameraFrameName() + " to " + "base_link!"
-							+ " However, " + "will continue..");
-					// cancel this loop..no result can be computed
-					return;
-				}
+		// set information to message
+		final geometry_msgs.PoseStamped posestamped = posePublisher.newMessage();
+		Pose pose = posestamped.getPose();
+		Quaternion orientation = pose.getOrientation();
+		Point point = pose.getPosition();
 
-				// multiply results
-				org.ros.rosjava_geometry.Transform current_pose = org.ros.rosjava_geometry.Transform.identity();
-				current_pose = current_pose.multiply(transform_map_cam);
-				current_pose = current_pose.multiply(transform_cam_base);
-
-				// check for plausibility of the pose by checking if movement
-				// exceeds max speed (defined) of the robot
-				if (parameter.badPoseReject()) {
-					Time current_timestamp = connectedNode.getCurrentTime();
-					// TODO Unfortunately, we do not have the tf timestamp at
-					// hand here. So we can only use the current timestamp.
-					double maxspeed = 5;
-					boolean goodpose = false;
-					// if (current_pose != null && current_timestamp != null) {
-					if (last_pose != null && last_timestamp != null) {
-						// check speed of movement between last and current pose
-						double distance = PoseCompare.distance(current_pose, last_pose);
-						double timedelta = PoseCompare.timedelta(current_timestamp, last_timestamp);
-						if ((distance / timedelta) < maxspeed) {
-							if (smoothing) {
-								double xold = last_pose.getTranslation().getX();
-								double yold = last_pose.getTranslation().getY();
-								double zold = last_pose.getTranslation().getZ();
-								double xnew = current_pose.getTranslation().getX();
-								double ynew = current_pose.getTranslation().getY();
-								double znew = current_pose.getTranslation().getZ();
-								final org.ros.rosjava_geometry.Vector3 smoothTranslation = new org.ros.rosjava_geometry.Vector3(
-										(xold * 2 + xnew) / 3, (yold * 2 + ynew) / 3, (zold * 2 + znew) / 3);
-								current_pose = new org.ros.rosjava_geometry.Transform(smoothTranslation,
-										current_pose.getRotationAndScale());
-								last_pose = current_pose;
-							}
-							last_pose = current_pose;
-							last_timestamp = current_timestamp;
-							goodpose = true;
-						} else {
-							log.info("distance " + distance + " time: " + timedelta + " --> Pose rejected");
-						}
-
-					} else {
-						last_pose = current_pose;
-						last_timestamp = current_timestamp;
-					}
-					// }
-					// bad pose rejection
-					if (!goodpose) {
-						return;
-					}
-				}
+		point.setX(current_pose.getTranslation().getX());
 
-				// set information to message
-				final geometry_msgs.PoseStamped posestamped = posePublisher.newMessage();
-				Pose pose = posestamped.getPose();
-				Quaternion orientation = pose.getOrientation();
-				Point point = pose.getPosition();
+		point.setY(current_pose.getTranslation().getY());
 
-				point.setX(current_pose.getTranslation().getX());
+		point.setZ(current_pose.getTranslation().getZ());
 
-				point.setY(current_pose.getTranslation().getY());
+		orientation.setW(current_pose.getRotationAndScale().getW());
+		orientation.setX(current_pose.getRotationAndScale().getX());
+		orientation.setY(current_pose.getRotationAndScale().getY());
+		orientation.setZ(current_pose.getRotationAndScale().getZ());
 
-				point.setZ(current_pose.getTranslation().getZ());
+		// frame_id too
+		posestamped.getHeader().setFrameId("map");
+		posestamped.getHeader().setStamp(framePose.captureTime());
+		posePublisher.publish(posestamped);
+		mostRecentPose.set(posestamped);
+	}
 
-				orientation.setW(current_pose.getRotationAndScale().getW());
-				orientation.setX(current_pose.getRotationAndScale().getX());
-				orientation.setY(current_pose.getRotationAndScale().getY());
-				orientation.setZ(current_pose.getRotationAndScale().getZ());
+	/**
+	 * Publishes and records the time from the capture of an image to the
+	 * publication of its pose.
+	 */
+	private void recordLatency(ConnectedNode connectedNode, Time captureTime) {
+		final long latencyNanos = connectedNode.getCurrentTime().subtract(captureTime).totalNsecs();
+		lastLatencyNanos = latencyNanos;
+		totalLatencyNanos.addAndGet(latencyNanos);
+		publishedPoses.incrementAndGet();
+		final Float64 latency = latencyPublisher.newMessage();
+		latency.setData(latencyNanos / 1.0E09);
+		latencyPublisher.publish(latency);
+	}
 
-				// frame_id too
-				posestamped.getHeader().setFrameId("map");
-				posestamped.getHeader().setStamp(connectedNode.getCurrentTime());
-				posePublisher.publish(posestamped);
-				mostRecentPose.set(posestamped);
-			}
-		});
+	/** @return the mean time from capture to publication in milliseconds */
+	public double meanLatencyMillis() {
+		final long count = publishedPoses.get();
+		return count == 0 ? 0 : totalLatencyNanos.get() / 1.0E06 / count;
+	}
 
+	/**
+	 * @return the transform from the camera frame to the given frame at the
+	 *         given time, or null if it is not known
+	 */
+	@Nullable
+	private org.ros.rosjava_geometry.Transform lookupCameraTransform(String targetFrameName, Time time) {
+		final GraphName sourceFrame = GraphName.of(camera.frameName());
+		final GraphName targetFrame = GraphName.of(targetFrameName);
+		if (!transformationService.canTransform(targetFrame, sourceFrame)) {
+			log.info("Cloud not get transformation from " + camera.frameName() + " to " + targetFrameName
+					+ "! However, will continue..");
+			return null;
+		}
+		try {
+			return transformationService.lookupTransform(targetFrame, sourceFrame, time);
+		} catch (Exception e) {
+			log.error(ExceptionUtils.getStackTrace(e));
+			log.info("Cloud not get transformation from " + camera.frameName() + " to " + targetFrameName
+					+ "! However, will continue..");
+			return null;
+		}
 	}
 
-	private static CameraParams getCameraInfo(ConnectedNode connectedNode, Parameter parameter) {// Subscribe
+	private static CameraParams getCameraInfo(ConnectedNode connectedNode, CameraConfig camera) {// Subscribe
 																									// to
 																									// camera
 																									// info
-		Subscriber<CameraInfo> subscriberToCameraInfo = connectedNode.newSubscriber(parameter.cameraInfoTopic(),
+		Subscriber<CameraInfo> subscriberToCameraInfo = connectedNode.newSubscriber(camera.infoTopic(),
 				CameraInfo._TYPE);
 		final CameraInfoService cameraInfoService = CameraInfoService.create(subscriberToCameraInfo);
 		Optional<CameraParams> cameraParamsOptional = cameraInfoService.getCameraParams();
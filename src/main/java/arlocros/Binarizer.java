@@ -0,0 +1,243 @@
+package arlocros;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Converts a camera image to a single-channel black and white image in one pass over the pixels.
+ * The luminance of each pixel is computed and compared to the threshold in the same loop, so no
+ * intermediate gray image is written.
+ *
+ * <ul>
+ *   <li>{@link Mode#FIXED} compares the luminance to a configured threshold.
+ *   <li>{@link Mode#OTSU} uses the Otsu threshold of the histogram of the previous frame, and
+ *       collects the histogram of the current frame while binarizing it. Only the very first frame
+ *       needs an extra pass to build a histogram.
+ *   <li>{@link Mode#ADAPTIVE} compares each pixel to the mean of the square block around it minus
+ *       an offset. The block means are taken from an integral image, which is built row by row
+ *       just ahead of the rows being binarized.
+ * </ul>
+ *
+ * <p>The pixel arrays are kept between frames. A binarizer is not thread-safe, each pipeline uses
+ * its own.
+ */
+public final class Binarizer {
+
+  /** The binarization modes, {@link #NONE} keeps the original preprocessing. */
+  public enum Mode {
+    NONE,
+    FIXED,
+    OTSU,
+    ADAPTIVE
+  }
+
+  private static final int LEVELS = 256;
+
+  private final Mode mode;
+  private final int fixedThreshold;
+  private final int blockRadius;
+  private final int offset;
+  private final byte foreground;
+  private final byte background;
+
+  private byte[] pixels = new byte[0];
+  private byte[] binary = new byte[0];
+  private int[] integral = new int[0];
+  private final int[] histogram = new int[LEVELS];
+  private boolean hasHistogram;
+
+  private Binarizer(
+      Mode mode, int fixedThreshold, int blockRadius, int offset, boolean invertBlackWhiteColor) {
+    checkArgument(mode != Mode.NONE, "A binarizer needs a binarization mode.");
+    checkArgument(
+        blockRadius >= 1,
+        String.format("Adaptive block radius must be at least 1, but it is %d.", blockRadius));
+    this.mode = mode;
+    this.fixedThreshold = fixedThreshold;
+    this.blockRadius = blockRadius;
+    this.offset = offset;
+    this.foreground = invertBlackWhiteColor ? 0 : (byte) 255;
+    this.background = invertBlackWhiteColor ? (byte) 255 : 0;
+  }
+
+  /**
+   * @param fixedThreshold luminance above which pixels are white in the fixed mode
+   * @param blockRadius half the size of the blocks averaged in the adaptive mode
+   * @param offset subtracted from the block mean in the adaptive mode
+   * @param invertBlackWhiteColor swaps black and white in the output
+   */
+  public static Binarizer create(
+      Mode mode, int fixedThreshold, int blockRadius, int offset, boolean invertBlackWhiteColor) {
+    return new Binarizer(mode, fixedThreshold, blockRadius, offset, invertBlackWhiteColor);
+  }
+
+  public static Binarizer create(Parameter parameter) {
+    return create(
+        parameter.binarization(),
+        parameter.binarizationThreshold(),
+        parameter.adaptiveBlockRadius(),
+        parameter.adaptiveOffset(),
+        parameter.invertBlackWhiteColor());
+  }
+
+  /**
+   * Binarizes an RGB or luminance image.
+   *
+   * @param source a continuous CV_8UC3 RGB or CV_8UC1 luminance image, it is not modified
+   * @param destination the Mat to write the CV_8UC1 result to, only reallocated if the size changes
+   * @return the destination Mat
+   */
+  public Mat binarize(Mat source, Mat destination) {
+    // the message is only built when the check fails, this runs for every frame
+    final int type = source.type();
+    if (type != CvType.CV_8UC3 && type != CvType.CV_8UC1) {
+      throw new IllegalArgumentException(
+          String.format("Cannot binarize an image of type %s.", CvType.typeToString(type)));
+    }
+    checkArgument(source.isContinuous(), "Cannot binarize an image that is not continuous.");
+    final int rows = source.rows();
+    final int cols = source.cols();
+    final int channels = source.channels();
+    if (pixels.length != rows * cols * channels) {
+      pixels = new byte[rows * cols * channels];
+    }
+    if (binary.length != rows * cols) {
+      binary = new byte[rows * cols];
+    }
+    source.get(0, 0, pixels);
+
+    switch (mode) {
+      case FIXED:
+        threshold(channels, fixedThreshold, false);
+        break;
+      case OTSU:
+        if (!hasHistogram) {
+          collectHistogram(channels);
+        }
+        final int otsuThreshold = otsuThreshold(histogram);
+        Arrays.fill(histogram, 0);
+        threshold(channels, otsuThreshold, true);
+        hasHistogram = true;
+        break;
+      case ADAPTIVE:
+        adaptiveThreshold(rows, cols, channels);
+        break;
+      default:
+        throw new IllegalStateException("Unexpected binarization mode " + mode);
+    }
+
+    destination.create(rows, cols, CvType.CV_8UC1);
+    destination.put(0, 0, binary);
+    return destination;
+  }
+
+  /** The fixed point luminance of OpenCV's RGB2GRAY conversion, so both modes agree. */
+  private static int luminance(byte[] pixels, int index, int channels) {
+    if (channels == 1) {
+      return pixels[index] & 0xff;
+    }
+    return (4899 * (pixels[index] & 0xff)
+            + 9617 * (pixels[index + 1] & 0xff)
+            + 1868 * (pixels[index + 2] & 0xff)
+            + (1 << 13))
+        >> 14;
+  }
+
+  private void threshold(int channels, int threshold, boolean countHistogram) {
+    for (int i = 0, p = 0; i < binary.length; i++, p += channels) {
+      final int value = luminance(pixels, p, channels);
+      binary[i] = value > threshold ? foreground : background;
+      if (countHistogram) {
+        histogram[value]++;
+      }
+    }
+  }
+
+  private void collectHistogram(int channels) {
+    Arrays.fill(histogram, 0);
+    for (int i = 0, p = 0; i < binary.length; i++, p += channels) {
+      histogram[luminance(pixels, p, channels)]++;
+    }
+  }
+
+  /** @return the level maximizing the between-class variance, pixels above it are white */
+  private static int otsuThreshold(int[] histogram) {
+    long total = 0;
+    long sum = 0;
+    for (int level = 0; level < LEVELS; level++) {
+      total += histogram[level];
+      sum += (long) level * histogram[level];
+    }
+    long backgroundCount = 0;
+    long backgroundSum = 0;
+    double maxVariance = -1;
+    int threshold = 0;
+    for (int level = 0; level < LEVELS; level++) {
+      backgroundCount += histogram[level];
+      if (backgroundCount == 0) {
+        continue;
+      }
+      final long foregroundCount = total - backgroundCount;
+      if (foregroundCount == 0) {
+        break;
+      }
+      backgroundSum += (long) level * histogram[level];
+      final double meanDifference =
+          backgroundSum / (double) backgroundCount
+              - (sum - backgroundSum) / (double) foregroundCount;
+      final double variance =
+          backgroundCount * (double) foregroundCount * meanDifference * meanDifference;
+      if (variance > maxVariance) {
+        maxVariance = variance;
+        threshold = level;
+      }
+    }
+    return threshold;
+  }
+
+  /**
+   * Computes the luminance and the integral image row by row and binarizes each row as soon as the
+   * integral image covers the block below it. The luminance is kept in the output array until the
+   * row is binarized.
+   */
+  private void adaptiveThreshold(int rows, int cols, int channels) {
+    final int stride = cols + 1;
+    if (integral.length != (rows + 1) * stride) {
+      // the first row and column stay zero, the sums fit in an int up to 8 megapixels
+      integral = new int[(rows + 1) * stride];
+    }
+    for (int y = 0; y < rows + blockRadius; y++) {
+      if (y < rows) {
+        int rowSum = 0;
+        for (int x = 0, i = y * cols, p = i * channels; x < cols; x++, i++, p += channels) {
+          final int value = luminance(pixels, p, channels);
+          binary[i] = (byte) value;
+          rowSum += value;
+          integral[(y + 1) * stride + x + 1] = integral[y * stride + x + 1] + rowSum;
+        }
+      }
+
+      final int row = y - blockRadius;
+      if (row < 0) {
+        continue;
+      }
+      final int top = Math.max(row - blockRadius, 0) * stride;
+      final int bottom = Math.min(row + blockRadius + 1, rows) * stride;
+      final int height = (bottom - top) / stride;
+      for (int x = 0, i = row * cols; x < cols; x++, i++) {
+        final int left = Math.max(x - blockRadius, 0);
+        final int right = Math.min(x + blockRadius + 1, cols);
+        final int count = height * (right - left);
+        final int sum =
+            integral[bottom + right] - integral[top + right] - integral[bottom + left]
+                + integral[top + left];
+        // value > mean - offset without a division
+        binary[i] = (binary[i] & 0xff) * count > sum - offset * count ? foreground : background;
+      }
+    }
+  }
+}
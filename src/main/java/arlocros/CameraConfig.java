@@ -0,0 +1,27 @@
+package arlocros;
+
+import com.google.auto.value.AutoValue;
+
+/** The topics and frames of one of the cameras used for localization. */
+@AutoValue
+public abstract class CameraConfig {
+
+  CameraConfig() {}
+
+  /** A short name of the camera, used to name its topics and frames. */
+  public abstract String name();
+
+  public abstract String imageTopic();
+
+  public abstract String infoTopic();
+
+  public abstract String frameName();
+
+  /** The frame the markers seen by this camera are published in. */
+  public abstract String markerFrameName();
+
+  public static CameraConfig create(
+      String name, String imageTopic, String infoTopic, String frameName, String markerFrameName) {
+    return new AutoValue_CameraConfig(name, imageTopic, infoTopic, frameName, markerFrameName);
+  }
+}
@@ -0,0 +1,209 @@
+package arlocros;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import geometry_msgs.PoseStamped;
+import geometry_msgs.TransformStamped;
+import org.ros.concurrent.CancellableLoop;
+import org.ros.message.Time;
+import org.ros.namespace.GraphName;
+import org.ros.node.ConnectedNode;
+import org.ros.node.topic.Publisher;
+import org.ros.rosjava_geometry.Transform;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import tf2_msgs.TFMessage;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Combines the map poses of several cameras into one pose. The poses of the cameras that are at
+ * most {@link #MAX_POSE_AGE_IN_SECONDS} older than the most recent one are averaged with equal
+ * weights. The combined pose is published together with the map to odom transform whenever one of
+ * the cameras has computed a new pose.
+ *
+ * <p>The publishing runs in a loop of the node, so it stops when the node shuts down. A failed
+ * publish is logged and the loop carries on with the next period.
+ */
+public final class CombinedPoseEstimator implements PoseEstimator {
+  private static final Logger logger = LoggerFactory.getLogger(CombinedPoseEstimator.class);
+
+  private static final double MAX_POSE_AGE_IN_SECONDS = 0.2;
+
+  private final ImmutableList<? extends PoseEstimator> cameraPoseEstimators;
+  private final Publisher<PoseStamped> posePublisher;
+  private final Publisher<TFMessage> tfPublisher;
+  private final TransformationService transformationService;
+  private final ConnectedNode connectedNode;
+
+  private CombinedPoseEstimator(
+      ImmutableList<? extends PoseEstimator> cameraPoseEstimators,
+      Publisher<PoseStamped> posePublisher,
+      TransformationService transformationService,
+      double publishFrequency,
+      ConnectedNode connectedNode) {
+    this.cameraPoseEstimators = cameraPoseEstimators;
+    this.posePublisher = posePublisher;
+    this.transformationService = transformationService;
+    this.connectedNode = connectedNode;
+    this.tfPublisher = connectedNode.newPublisher("tf", TFMessage._TYPE);
+
+    final long publishRateInNanoSeconds = (long) (1.0E9 / publishFrequency);
+    connectedNode.executeCancellableLoop(new PublishCombinedPose(publishRateInNanoSeconds));
+  }
+
+  public static CombinedPoseEstimator create(
+      ImmutableList<? extends PoseEstimator> cameraPoseEstimators,
+      Publisher<PoseStamped> posePublisher,
+      TransformationService transformationService,
+      double publishFrequency,
+      ConnectedNode connectedNode) {
+    return new CombinedPoseEstimator(
+        cameraPoseEstimators, posePublisher, transformationService, publishFrequency, connectedNode);
+  }
+
+  @Override
+  public Optional<PoseStamped> getMostRecentPose() {
+    final List<PoseStamped> poses = new ArrayList<>();
+    Time newestStamp = null;
+    for (final PoseEstimator cameraPoseEstimator : cameraPoseEstimators) {
+      final Optional<PoseStamped> pose = cameraPoseEstimator.getMostRecentPose();
+      if (pose.isPresent()) {
+        poses.add(pose.get());
+        final Time stamp = pose.get().getHeader().getStamp();
+        if (newestStamp == null || stamp.compareTo(newestStamp) > 0) {
+          newestStamp = stamp;
+        }
+      }
+    }
+    if (poses.isEmpty()) {
+      return Optional.absent();
+    }
+
+    double x = 0;
+    double y = 0;
+    double z = 0;
+    double qx = 0;
+    double qy = 0;
+    double qz = 0;
+    double qw = 0;
+    int count = 0;
+    geometry_msgs.Quaternion reference = null;
+    for (final PoseStamped pose : poses) {
+      final double age = newestStamp.subtract(pose.getHeader().getStamp()).totalNsecs() / 1.0E09;
+      if (age > MAX_POSE_AGE_IN_SECONDS) {
+        continue;
+      }
+      x += pose.getPose().getPosition().getX();
+      y += pose.getPose().getPosition().getY();
+      z += pose.getPose().getPosition().getZ();
+      // q and -q are the same rotation, so align all quaternions to the first one before summing
+      final geometry_msgs.Quaternion orientation = pose.getPose().getOrientation();
+      if (reference == null) {
+        reference = orientation;
+      }
+      final double sign =
+          orientation.getX() * reference.getX()
+                      + orientation.getY() * reference.getY()
+                      + orientation.getZ() * reference.getZ()
+                      + orientation.getW() * reference.getW()
+                  < 0
+              ? -1
+              : 1;
+      qx += sign * orientation.getX();
+      qy += sign * orientation.getY();
+      qz += sign * orientation.getZ();
+      qw += sign * orientation.getW();
+      count++;
+    }
+    final double norm = Math.sqrt(qx * qx + qy * qy + qz * qz + qw * qw);
+
+    final PoseStamped combinedPose = posePublisher.newMessage();
+    combinedPose.getHeader().setFrameId("map");
+    combinedPose.getHeader().setStamp(newestStamp);
+    combinedPose.getPose().getPosition().setX(x / count);
+    combinedPose.getPose().getPosition().setY(y / count);
+    combinedPose.getPose().getPosition().setZ(z / count);
+    combinedPose.getPose().getOrientation().setX(qx / norm);
+    combinedPose.getPose().getOrientation().setY(qy / norm);
+    combinedPose.getPose().getOrientation().setZ(qz / norm);
+    combinedPose.getPose().getOrientation().setW(qw / norm);
+    return Optional.of(combinedPose);
+  }
+
+  private final class PublishCombinedPose extends CancellableLoop {
+    private final long periodNanos;
+    private long nextPublishNanos;
+    @Nullable Time lastPublishedStamp;
+
+    private PublishCombinedPose(long periodNanos) {
+      this.periodNanos = periodNanos;
+    }
+
+    @Override
+    protected void setup() {
+      nextPublishNanos = System.nanoTime();
+    }
+
+    @Override
+    protected void loop() throws InterruptedException {
+      // fixed rate, but a late period does not cause a burst of publishes to catch up
+      final long delay = nextPublishNanos - System.nanoTime();
+      if (delay > 0) {
+        TimeUnit.NANOSECONDS.sleep(delay);
+      }
+      nextPublishNanos = Math.max(nextPublishNanos, System.nanoTime()) + periodNanos;
+      try {
+        publishCombinedPose();
+      } catch (RuntimeException e) {
+        // an exception would end the loop and with it all further publishing
+        logger.error("Could not publish the combined pose.", e);
+      }
+    }
+
+    private void publishCombinedPose() {
+      final Optional<PoseStamped> combinedPose = getMostRecentPose();
+      if (!combinedPose.isPresent()
+          || combinedPose.get().getHeader().getStamp().equals(lastPublishedStamp)) {
+        return;
+      }
+      lastPublishedStamp = combinedPose.get().getHeader().getStamp();
+      posePublisher.publish(combinedPose.get());
+      publishMapToOdom(combinedPose.get());
+    }
+
+    private void publishMapToOdom(PoseStamped mapToBaseLink) {
+      final GraphName sourceFrame = GraphName.of("base_link");
+      final GraphName targetFrame = GraphName.of("odom");
+      if (!transformationService.canTransform(targetFrame, sourceFrame)) {
+        logger.info("Could not get transformation from base_link to odom. However, will continue..");
+        return;
+      }
+      final Transform baseLinkToOdom =
+          transformationService.lookupTransform(
+              targetFrame, sourceFrame, mapToBaseLink.getHeader().getStamp());
+      final Transform mapToOdom =
+          Transform.fromPoseMessage(mapToBaseLink.getPose()).multiply(baseLinkToOdom);
+
+      final TFMessage tfMessage = tfPublisher.newMessage();
+      final TransformStamped transformStamped =
+          connectedNode.getTopicMessageFactory().newFromType(TransformStamped._TYPE);
+      final geometry_msgs.Transform transform = transformStamped.getTransform();
+      transform.getTranslation().setX(mapToOdom.getTranslation().getX());
+      transform.getTranslation().setY(mapToOdom.getTranslation().getY());
+      transform.getTranslation().setZ(mapToOdom.getTranslation().getZ());
+      transform.getRotation().setX(mapToOdom.getRotationAndScale().getX());
+      transform.getRotation().setY(mapToOdom.getRotationAndScale().getY());
+      transform.getRotation().setZ(mapToOdom.getRotationAndScale().getZ());
+      transform.getRotation().setW(mapToOdom.getRotationAndScale().getW());
+      transformStamped.getHeader().setFrameId("map");
+      transformStamped.setChildFrameId("odom");
+      transformStamped.getHeader().setStamp(mapToBaseLink.getHeader().getStamp());
+      tfMessage.getTransforms().add(transformStamped);
+      tfPublisher.publish(tfMessage);
+    }
+  }
+}
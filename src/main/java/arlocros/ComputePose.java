@@ -16,189 +16,639 @@
 
 package arlocros;
 
-import it.unimi.dsi.fastutil.ints.Int2ObjectLinkedOpenHashMap;
-import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
 import jp.nyatla.nyartoolkit.core.NyARCode;
 import jp.nyatla.nyartoolkit.core.NyARException;
-import jp.nyatla.nyartoolkit.core.param.NyARCameraDistortionFactorV2;
-import jp.nyatla.nyartoolkit.core.param.NyARParam;
-import jp.nyatla.nyartoolkit.core.param.NyARPerspectiveProjectionMatrix;
-import jp.nyatla.nyartoolkit.core.raster.rgb.INyARRgbRaster;
-import jp.nyatla.nyartoolkit.core.types.NyARIntPoint2d;
-import jp.nyatla.nyartoolkit.core.types.NyARIntSize;
-import jp.nyatla.nyartoolkit.markersystem.NyARMarkerSystem;
-import jp.nyatla.nyartoolkit.markersystem.NyARMarkerSystemConfig;
-import jp.nyatla.nyartoolkit.markersystem.NyARSensor;
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDouble;
-import org.opencv.core.MatOfPoint;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.MatOfPoint3f;
 import org.opencv.core.Point;
 import org.opencv.core.Point3;
+import org.opencv.core.Rect;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * Static class that contains the pose computation from multiple AR marker
  * system using NyARToolkit Java library.
  * http://nyatla.jp/nyartoolkit/wp/?page_id=198
+ * <p>
+ * In ROI tracking mode only a padded region around the markers detected in the
+ * previous frame is searched. The whole image is searched again if no marker
+ * is found in the region, and in any case after a configured number of frames.
+ * <p>
+ * With a pyramid downscale factor above one, the markers are searched in a
+ * downscaled copy of the image and only their corners are refined in the full
+ * resolution camera image, not in the preprocessed detection image.
+ * <p>
+ * With the visibility prefilter, the template detector only reports the
+ * markers that are predicted to be visible from the last good pose. The image
+ * is searched again for all markers if none of them is found.
+ * <p>
+ * In pose tracking mode the pose is refined iteratively from the last
+ * accepted pose, and RANSAC is only used if the refined pose does not fit the
+ * points or there is no last pose.
  */
 public final class ComputePose {
 
+	/**
+	 * How markers are identified: by matching their patterns with NyARToolkit,
+	 * or by reading the bits of the 4x4 grid markers.
+	 */
+	public enum DetectionMode {
+		TEMPLATE, ID
+	}
+
+	/**
+	 * How the pose is solved when it is not tracked: with OpenCV's RANSAC on
+	 * random point samples, with RANSAC on the poses of single markers, or in
+	 * Java for markers that all lie in one plane.
+	 */
+	public enum PoseSolver {
+		RANSAC, MARKER_RANSAC, PLANAR
+	}
+
+	// region sizes are rounded up to multiples of this many pixels, so that
+	// only a few detector sizes are needed
+	private static final int ROI_SIZE_STEP = 64;
+	// number of detectors of different sizes kept
+	private static final int MAX_DETECTORS = 8;
+	private static final Scalar RED = new Scalar(0, 0, 255);
+	private static final Scalar BLUE = new Scalar(250, 0, 0);
+	private static final Scalar GRAY = new Scalar(128);
+
 	private final List<String> markerPatterns;
-	private Map<Integer, String> patternmap;
-	private final NyARIntSize i_screen_size;
-	private final NyARPerspectiveProjectionMatrix i_projection_mat;
-	private final NyARCameraDistortionFactorV2 i_dist_factor;
-	private final NyARParam i_param;
-	private NyARMarkerSystemConfig i_config;
-	private NyARMarkerSystem markerSystemState;
-	private NyARSensor cameraSensorWrapper;
-	private int[] ids;
+	private final List<NyARCode> arCodes;
+	private final int width;
+	private final int height;
 	private final MarkerConfig markerConfig;
 	private final Mat cameraMatrix;
 	private final MatOfDouble distCoeffs;
-	private final Int2ObjectMap<NyARCode> arCodes = new Int2ObjectLinkedOpenHashMap<>();
-	private final boolean visualization;
+	private final Parameter parameter;
+	private final int downscaleFactor;
+	// only set in ID detection mode
+	private final IdMarkerDetector idDetector;
+	// only set if the visibility prefilter is enabled in template mode
+	private final VisibilityFilter visibilityFilter;
+	// only set for the marker RANSAC solver
+	private final MarkerRansac markerRansac;
+	// only set for the planar solver
+	private final PlanarPoseSolver planarSolver;
+	private final Mat downscaledImage = new Mat();
+	private final Size downscaledSize = new Size();
+	// markers found in the downscaled image in the pyramid mode
+	private final DetectedMarkers coarseMarkers = DetectedMarkers.create();
+	// markers of computePose, the pipeline passes the markers of its frames
+	private final DetectedMarkers markers = DetectedMarkers.create();
+	private final CornerRefiner cornerRefiner = CornerRefiner.create();
+	// x, y, z of the four corners of each marker, by marker id
+	private final double[] markerCorners3d;
+	private final String[] markerLabels;
+	// object points of the current frame, grown when more markers are seen;
+	// the image points are the corners of the detected markers
+	private double[] objectCoordinates = new double[0];
+	// corners of the marker outline and origin of the label drawn into the
+	// image, set for each marker
+	private final Point upperLeft = new Point();
+	private final Point lowerRight = new Point();
+	private final Point labelOrigin = new Point();
+	private final MatOfPoint2f imagePoints = new MatOfPoint2f();
+	private final MatOfPoint3f objectPoints = new MatOfPoint3f();
+	private final Mat inliers = new Mat();
+	private float[] projectedCoordinates = new float[0];
+	private final MatOfPoint2f projectedPoints = new MatOfPoint2f();
+	// last pose accepted by the solver, the start of the tracking solve
+	private final Mat lastRvec = new Mat(3, 1, CvType.CV_64F);
+	private final Mat lastTvec = new Mat(3, 1, CvType.CV_64F);
+	private boolean hasLastPose;
+	private long lastPoseNanos;
+	// one detector for each image size, all detect every marker
+	private final Map<Size, MarkerDetector> detectors = new LinkedHashMap<Size, MarkerDetector>(MAX_DETECTORS,
+			0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Size, MarkerDetector> eldest) {
+			return size() > MAX_DETECTORS;
+		}
+	};
 
+	// bounding box of the markers detected in the previous frame, only valid
+	// if there were markers
+	private final Rect lastMarkerBounds = new Rect();
+	private boolean hasLastMarkerBounds;
+	private final Rect fullImage;
+	private final Rect searchRegion = new Rect();
+	private int framesSinceFullScan;
+	// markers reported in the current frame, null for all markers
+	private BitSet visibleMarkers;
+	private final AtomicLong fullScans = new AtomicLong();
+	private final AtomicLong roiScans = new AtomicLong();
+	private final AtomicLong detectorSetups = new AtomicLong();
+	private final AtomicLong detectorSetupNanos = new AtomicLong();
+	private final AtomicLong frameSetups = new AtomicLong();
+	private final AtomicLong frameSetupNanos = new AtomicLong();
+	private final AtomicLong prefilteredFrames = new AtomicLong();
+	private final AtomicLong prefilteredMarkers = new AtomicLong();
+	private final AtomicLong prefilterMisses = new AtomicLong();
+	private final AtomicLong trackedSolves = new AtomicLong();
+	private final AtomicLong trackedSolveNanos = new AtomicLong();
+	private final AtomicLong fullSolves = new AtomicLong();
+	private final AtomicLong fullSolveNanos = new AtomicLong();
+	private final AtomicLong trackingFallbacks = new AtomicLong();
 
-	private ComputePose(MarkerConfig markerConfig, Size size, Mat cameraMatrix, MatOfDouble
-			distCoeffs, boolean visualization)
-			throws NyARException, FileNotFoundException {
-		this.visualization = visualization;
-		this.markerConfig = markerConfig;
+	private ComputePose(MarkerMap markerMap, Size size, Mat cameraMatrix, MatOfDouble
+			distCoeffs, Parameter parameter) throws NyARException {
+		this.parameter = parameter;
+		this.markerConfig = markerMap.markerConfig();
 		this.cameraMatrix = cameraMatrix;
 		this.distCoeffs = distCoeffs;
-		// only load the whole configuration once
-		// get pattern files from marker config
-		markerPatterns = markerConfig.getPatternFileList();
-		if (markerPatterns.size() == 0) {
-			ArMarkerPoseEstimator.getLog().info("CANNOT LOAD ANY MARKER. PROBABLY THERE IS SOMETHING " +
-					"WRONG WITH THE MARKER CONFIG FILE");
-		}
-		// create hashmap of correspondences between id and file/pattern
-		// name
-		patternmap = new HashMap<>();
-		// create and load camera specific classes
-		i_screen_size = new NyARIntSize((int) size.width, (int) size.height);
-		i_projection_mat = new NyARPerspectiveProjectionMatrix();
-		i_dist_factor = new NyARCameraDistortionFactorV2();
-		i_param = new NyARParam(i_screen_size, i_projection_mat, i_dist_factor);
-
-		// create new marker system configuration
-		i_config = new NyARMarkerSystemConfig(i_param);
-		markerSystemState = new NyARMarkerSystem(i_config);
-		// Create wrapper that passes cam pictures to marker system
-		cameraSensorWrapper = new NyARSensor(i_screen_size);
-		ids = new int[markerPatterns.size()];
-		for (int i = 0; i < markerPatterns.size(); i++) {
-			// create marker description from pattern file and add to marker
-			// system
-			NyARCode code = NyARCode.createFromARPattFile(new FileInputStream(markerPatterns.get(i)), 16, 16);
-			arCodes.put(i, code);
-			ids[i] = markerSystemState.addARMarker(code, 25, markerConfig.getMarkerSize());
-			patternmap.put(ids[i], markerPatterns.get(i));
-		}
-	}
-
-	public static ComputePose create(MarkerConfig markerConfig, Size size, Mat cameraMatrix,
-			MatOfDouble distCoeffs, boolean visualization)
-			throws NyARException, FileNotFoundException {
-		return new ComputePose(markerConfig, size, cameraMatrix, distCoeffs, visualization);
-	}
-
-	public boolean computePose(Mat rvec, Mat tvec, Mat image2) throws NyARException, FileNotFoundException {
-		// convert image to NyAR style for processing
-		final INyARRgbRaster imageRaster = NyARImageHelper.createFromMat(image2);
-
-		// create new marker system configuration
-		i_config = new NyARMarkerSystemConfig(i_param);
-		markerSystemState = new NyARMarkerSystem(i_config);
-		// Create wrapper that passes cam pictures to marker system
-		cameraSensorWrapper = new NyARSensor(i_screen_size);
-		ids = new int[markerPatterns.size()];
-		patternmap=new HashMap<>();
-		for (int i = 0; i < markerPatterns.size(); i++) {
-			// create marker description from pattern file and add to marker
-			// system
-			ids[i] = markerSystemState.addARMarker(arCodes.get(i), 25, markerConfig.getMarkerSize());
-			patternmap.put(ids[i], markerPatterns.get(i));
-		}
-
-		cameraSensorWrapper.update(imageRaster);
-		markerSystemState.update(cameraSensorWrapper);
-
-		// init 3D point list
-		final List<Point3> points3dlist = new ArrayList<>();
-		final List<Point> points2dlist = new ArrayList<>();
-
-		for (final int id : ids) {
-			// process only if this marker has been detected
-			if (markerSystemState.isExistMarker(id) && markerSystemState.getConfidence(id)>0.7) {
-				// read and add 2D points
-				final NyARIntPoint2d[] vertex2d = markerSystemState.getMarkerVertex2D(id);
-				Point p = new Point(vertex2d[0].x, vertex2d[0].y);
-				points2dlist.add(p);
-				p = new Point(vertex2d[1].x, vertex2d[2].y);
-				points2dlist.add(p);
-				p = new Point(vertex2d[2].x, vertex2d[2].y);
-				points2dlist.add(p);
-				p = new Point(vertex2d[3].x, vertex2d[3].y);
-				points2dlist.add(p);
-
-				final MatOfPoint mop = new MatOfPoint();
-				mop.fromList(points2dlist);
-				final List<MatOfPoint> pts = new ArrayList<>();
-				pts.add(mop);
-				// read and add corresponding 3D points
-				points3dlist.addAll(markerConfig.create3dpointlist(patternmap.get(id)));
-				// draw red rectangle around detected marker
-				Core.rectangle(image2, new Point(vertex2d[0].x, vertex2d[0].y), new Point(vertex2d[2].x, vertex2d[2].y),
-						new Scalar(0, 0, 255));
-				final String markerFile = patternmap.get(id).replaceAll(".*4x4_", "").replace(".patt", "");
-				Core.putText(image2, markerFile, new Point((vertex2d[2].x+vertex2d[0].x)/2.0, vertex2d[0].y - 5),
-						4, 1, new Scalar(250, 0, 0));
+		this.width = (int) size.width;
+		this.height = (int) size.height;
+		this.fullImage = new Rect(0, 0, width, height);
+		this.downscaleFactor = parameter.pyramidDownscaleFactor();
+		checkArgument(downscaleFactor >= 1, "Pyramid downscale factor must be at least 1, but it is %s.",
+				downscaleFactor);
+		// the patterns are loaded once and shared by all cameras
+		markerPatterns = markerMap.patternFiles();
+		arCodes = markerMap.arCodes();
+		markerCorners3d = new double[12 * markerPatterns.size()];
+		markerLabels = new String[markerPatterns.size()];
+		for (int id = 0; id < markerPatterns.size(); id++) {
+			final List<Point3> corners = markerConfig.create3dpointlist(markerPatterns.get(id));
+			for (int c = 0; c < 4; c++) {
+				markerCorners3d[12 * id + 3 * c] = corners.get(c).x;
+				markerCorners3d[12 * id + 3 * c + 1] = corners.get(c).y;
+				markerCorners3d[12 * id + 3 * c + 2] = corners.get(c).z;
 			}
+			markerLabels[id] = markerPatterns.get(id).replaceAll(".*4x4_", "").replace(".patt", "");
+		}
+		if (parameter.detectionMode() == DetectionMode.ID) {
+			idDetector = IdMarkerDetector.create(markerPatterns, markerMap.gridCodes(),
+					parameter.adaptiveBlockRadius(), parameter.adaptiveOffset());
+		} else {
+			idDetector = null;
+			// detector for the full camera image
+			getDetector(width / downscaleFactor, height / downscaleFactor);
+		}
+		if (parameter.visibilityPrefilter() && idDetector == null) {
+			visibilityFilter = VisibilityFilter.create(markerConfig, markerPatterns, cameraMatrix, width, height,
+					parameter.visibilityMargin(), parameter.visibilityMaxPoseAge());
+		} else {
+			visibilityFilter = null;
+		}
+		markerRansac = parameter.poseSolver() == PoseSolver.MARKER_RANSAC
+				? MarkerRansac.create(cameraMatrix, distCoeffs, parameter.ransacIterations(),
+						parameter.ransacReprojectionError(), parameter.ransacConfidence(),
+						parameter.ransacTimeBudget())
+				: null;
+		planarSolver = parameter.poseSolver() == PoseSolver.PLANAR ? PlanarPoseSolver.create(markerCorners3d,
+				cameraMatrix, distCoeffs, parameter.ransacReprojectionError()) : null;
+	}
+
+	public static ComputePose create(MarkerMap markerMap, Size size, Mat cameraMatrix,
+			MatOfDouble distCoeffs, Parameter parameter) throws NyARException {
+		return new ComputePose(markerMap, size, cameraMatrix, distCoeffs, parameter);
+	}
+
+	/**
+	 * Detects the markers in the image and computes the camera pose. The image
+	 * is either an RGB image or a single-channel luminance image.
+	 */
+	public DetectionResult computePose(Mat image2, DetectionResult result) throws NyARException {
+		detect(image2, markers);
+		return solvePose(image2, markers, result);
+	}
 
+	/**
+	 * Computes the camera pose from the markers detected in the image. The
+	 * markers are drawn into the image, which is shown if visualization is
+	 * enabled. The corners of the markers are the image points, the object
+	 * points are gathered in arrays and Mats that are reused for every frame.
+	 *
+	 * @return the given result, overwritten with the pose of this frame
+	 */
+	DetectionResult solvePose(Mat image2, DetectedMarkers markers, DetectionResult result) {
+		final int pointCount = 4 * markers.size();
+		if (objectCoordinates.length < 3 * pointCount) {
+			objectCoordinates = new double[3 * pointCount];
+			projectedCoordinates = new float[2 * pointCount];
+		}
+		final double[] imageCoordinates = markers.corners();
+		final boolean gray = image2.channels() == 1;
+		for (int m = 0; m < markers.size(); m++) {
+			final int id = markers.id(m);
+			// add the 3D points corresponding to the corners
+			System.arraycopy(markerCorners3d, 12 * id, objectCoordinates, 12 * m, 12);
+			// draw red rectangle around detected marker (gray on
+			// luminance images)
+			upperLeft.x = markers.x(m, 0);
+			upperLeft.y = markers.y(m, 0);
+			lowerRight.x = markers.x(m, 2);
+			lowerRight.y = markers.y(m, 2);
+			Core.rectangle(image2, upperLeft, lowerRight, gray ? GRAY : RED);
+			labelOrigin.x = (lowerRight.x + upperLeft.x) / 2.0;
+			labelOrigin.y = upperLeft.y - 5;
+			Core.putText(image2, markerLabels[id], labelOrigin, 4, 1, gray ? GRAY : BLUE);
 		}
-		// load 2D and 3D points to Mats for solvePNP
-		final MatOfPoint3f objectPoints = new MatOfPoint3f();
-		objectPoints.fromList(points3dlist);
-		final MatOfPoint2f imagePoints = new MatOfPoint2f();
-		imagePoints.fromList(points2dlist);
 
-		if (visualization) {
+		if (parameter.visualization()) {
 			// show image with markers detected
 			Imshow.show(image2);
 		}
 
 		// do not call solvePNP with empty intput data (no markers detected)
-		if (points2dlist.size() == 0) {
-			return false;
+		if (pointCount == 0) {
+			result.set(false, 0, 0, 0);
+			hasLastPose = false;
+			return result;
 		}
 
-		// uncomment these lines if using RANSAC-based pose estimation (more
-		// shaking)
-		Mat inliers = new Mat();
+		// load 2D and 3D points to Mats for solvePNP, put stops at the end of
+		// the Mats
+		imagePoints.create(pointCount, 1, CvType.CV_32FC2);
+		imagePoints.put(0, 0, imageCoordinates);
+		objectPoints.create(pointCount, 1, CvType.CV_32FC3);
+		objectPoints.put(0, 0, objectCoordinates);
 
-		Calib3d.solvePnPRansac(objectPoints, imagePoints, cameraMatrix, distCoeffs, rvec, tvec, false, 300, 5, 16,
-				inliers, Calib3d.CV_P3P);
-		ArMarkerPoseEstimator.getLog().info("Points detected: " + points2dlist.size() + " inliers: " + inliers.size());
-		// avoid publish zero pose if localization failed
-		if (inliers.rows() == 0) {
-			return false;
+		final long start = System.nanoTime();
+		// frames without markers do not reach the solver, so a dropout shows
+		// up as the age of the last pose, which may be far off by now
+		final boolean tracking = parameter.poseTracking() && hasLastPose
+				&& start - lastPoseNanos <= TimeUnit.MILLISECONDS.toNanos(parameter.trackingMaxPoseAge());
+		if (tracking && trackPose(result, imageCoordinates, markers.size(), pointCount)) {
+			trackedSolves.incrementAndGet();
+			trackedSolveNanos.addAndGet(System.nanoTime() - start);
+		} else {
+			if (tracking) {
+				trackingFallbacks.incrementAndGet();
+			}
+			final int inlierCount;
+			if (markerRansac != null) {
+				inlierCount = markerRansac.solve(objectCoordinates, imageCoordinates, objectPoints, imagePoints,
+						markers.size(), result.rvec(), result.tvec());
+			} else if (planarSolver != null) {
+				inlierCount = planarSolver.solve(objectCoordinates, imageCoordinates, markers.size(), result.rvec(),
+						result.tvec());
+			} else {
+				// uncomment these lines if using RANSAC-based pose estimation
+				// (more shaking)
+				Calib3d.solvePnPRansac(objectPoints, imagePoints, cameraMatrix, distCoeffs, result.rvec(),
+						result.tvec(), false, parameter.ransacIterations(),
+						(float) parameter.ransacReprojectionError(), parameter.ransacMinInliers(), inliers,
+						Calib3d.CV_P3P);
+				inlierCount = inliers.rows();
+			}
+			// avoid publish zero pose if localization failed
+			result.set(inlierCount > 0, markers.size(), pointCount, inlierCount);
+			fullSolves.incrementAndGet();
+			fullSolveNanos.addAndGet(System.nanoTime() - start);
+		}
+		ArMarkerPoseEstimator.getLog().info("Points detected: " + pointCount + " inliers: " + result.inlierCount());
+
+		hasLastPose = result.poseFound();
+		if (hasLastPose) {
+			lastPoseNanos = System.nanoTime();
+			result.rvec().copyTo(lastRvec);
+			result.tvec().copyTo(lastTvec);
+			if (visibilityFilter != null) {
+				visibilityFilter.update(result.rvec(), result.tvec());
+			}
 		}
+		return result;
+	}
 
+	/**
+	 * Refines the last accepted pose with an iterative solve on all points.
+	 * The pose is accepted if the mean reprojection error and the share of
+	 * points within the RANSAC threshold are good enough.
+	 *
+	 * @return true if the tracked pose has been accepted
+	 */
+	private boolean trackPose(DetectionResult result, double[] imageCoordinates, int markerCount, int pointCount) {
+		lastRvec.copyTo(result.rvec());
+		lastTvec.copyTo(result.tvec());
+		Calib3d.solvePnP(objectPoints, imagePoints, cameraMatrix, distCoeffs, result.rvec(), result.tvec(), true,
+				Calib3d.ITERATIVE);
+
+		Calib3d.projectPoints(objectPoints, result.rvec(), result.tvec(), cameraMatrix, distCoeffs, projectedPoints);
+		projectedPoints.get(0, 0, projectedCoordinates);
+		double errorSum = 0;
+		int inlierCount = 0;
+		for (int i = 0; i < pointCount; i++) {
+			final double error = Math.hypot(projectedCoordinates[2 * i] - imageCoordinates[2 * i],
+					projectedCoordinates[2 * i + 1] - imageCoordinates[2 * i + 1]);
+			errorSum += error;
+			if (error <= parameter.ransacReprojectionError()) {
+				inlierCount++;
+			}
+		}
+		if (errorSum / pointCount > parameter.trackingMaxReprojectionError()
+				|| inlierCount < parameter.trackingMinInlierRatio() * pointCount) {
+			return false;
+		}
+		result.set(true, markerCount, pointCount, inlierCount);
 		return true;
 	}
+
+	/**
+	 * Searches the region around the markers of the previous frame if ROI
+	 * tracking is enabled, and the whole image otherwise or if the region does
+	 * not contain any marker. Only the detection keeps state between frames,
+	 * so it has to be called for the frames in order.
+	 *
+	 * @param markers
+	 *            receives the markers found in the image, with their corners
+	 *            in image coordinates
+	 */
+	void detect(Mat image, DetectedMarkers markers) throws NyARException {
+		detect(image, image, markers);
+	}
+
+	/**
+	 * Detects the markers in a preprocessed image, e.g. a binary image, as
+	 * {@link #detect(Mat)}. The corners found in the pyramid mode are refined
+	 * in the camera image, which still has the gray levels around the corners.
+	 *
+	 * @param detectionImage
+	 *            the image the markers are searched in
+	 * @param cameraImage
+	 *            the unmodified camera image of the same size
+	 * @param markers
+	 *            receives the markers found in the image, with their corners
+	 *            in image coordinates
+	 */
+	void detect(Mat detectionImage, Mat cameraImage, DetectedMarkers markers) throws NyARException {
+		visibleMarkers = visibilityFilter == null ? null : visibilityFilter.visibleMarkers();
+		scan(detectionImage, cameraImage, markers);
+		if (visibleMarkers == null) {
+			return;
+		}
+		prefilteredFrames.incrementAndGet();
+		prefilteredMarkers.addAndGet(visibleMarkers.cardinality());
+		if (!markers.isEmpty()) {
+			return;
+		}
+		// the prediction was wrong, e.g. after a fast motion
+		prefilterMisses.incrementAndGet();
+		visibleMarkers = null;
+		scan(detectionImage, cameraImage, markers);
+	}
+
+	private void scan(Mat image, Mat cameraImage, DetectedMarkers markers) throws NyARException {
+		markers.clear();
+		if (parameter.roiTracking() && hasLastMarkerBounds
+				&& framesSinceFullScan < parameter.roiFullScanInterval()) {
+			setSearchRegion(lastMarkerBounds);
+			detectIn(image, cameraImage, searchRegion, markers);
+			roiScans.incrementAndGet();
+			if (!markers.isEmpty()) {
+				framesSinceFullScan++;
+				setBoundingBox(markers);
+				return;
+			}
+		}
+
+		detectIn(image, cameraImage, fullImage, markers);
+		fullScans.incrementAndGet();
+		framesSinceFullScan = 0;
+		hasLastMarkerBounds = !markers.isEmpty();
+		if (hasLastMarkerBounds) {
+			setBoundingBox(markers);
+		}
+	}
+
+	/**
+	 * Detects the markers in a region of the image, on a downscaled copy of the
+	 * region if the pyramid mode is enabled. The corners of the downscaled
+	 * search are refined in the camera image.
+	 */
+	private void detectIn(Mat image, Mat cameraImage, Rect region, DetectedMarkers markers)
+			throws NyARException {
+		final Mat regionImage = region.width == width && region.height == height ? image : image.submat(region);
+		if (downscaleFactor == 1) {
+			detect(regionImage, region.x, region.y, markers);
+			return;
+		}
+
+		downscaledSize.width = region.width / downscaleFactor;
+		downscaledSize.height = region.height / downscaleFactor;
+		Imgproc.resize(regionImage, downscaledImage, downscaledSize, 0, 0, Imgproc.INTER_AREA);
+		coarseMarkers.clear();
+		detect(downscaledImage, 0, 0, coarseMarkers);
+
+		final double scaleX = region.width / downscaledSize.width;
+		final double scaleY = region.height / downscaledSize.height;
+		final int searchRadius = (int) Math.ceil(Math.max(scaleX, scaleY));
+		for (int coarseMarker = 0; coarseMarker < coarseMarkers.size(); coarseMarker++) {
+			final int marker = markers.add(coarseMarkers.id(coarseMarker));
+			for (int c = 0; c < 4; c++) {
+				// map the downscaled pixel center to the full resolution
+				markers.setCorner(marker, c, region.x + (coarseMarkers.x(coarseMarker, c) + 0.5) * scaleX - 0.5,
+						region.y + (coarseMarkers.y(coarseMarker, c) + 0.5) * scaleY - 0.5);
+				cornerRefiner.refine(cameraImage, markers, marker, c, searchRadius);
+			}
+		}
+	}
+
+	/**
+	 * Pads the bounding box of the previous markers and rounds its size up, the
+	 * region is moved inside the image if necessary.
+	 */
+	private void setSearchRegion(Rect bounds) {
+		final int padding = parameter.roiPadding();
+		final int regionWidth = Math.min(roundUp(bounds.width + 2 * padding), width);
+		final int regionHeight = Math.min(roundUp(bounds.height + 2 * padding), height);
+		searchRegion.x = clamp(bounds.x + (bounds.width - regionWidth) / 2, 0, width - regionWidth);
+		searchRegion.y = clamp(bounds.y + (bounds.height - regionHeight) / 2, 0, height - regionHeight);
+		searchRegion.width = regionWidth;
+		searchRegion.height = regionHeight;
+	}
+
+	private void setBoundingBox(DetectedMarkers markers) {
+		double minX = Double.MAX_VALUE;
+		double minY = Double.MAX_VALUE;
+		double maxX = -Double.MAX_VALUE;
+		double maxY = -Double.MAX_VALUE;
+		for (int m = 0; m < markers.size(); m++) {
+			for (int c = 0; c < 4; c++) {
+				minX = Math.min(minX, markers.x(m, c));
+				minY = Math.min(minY, markers.y(m, c));
+				maxX = Math.max(maxX, markers.x(m, c));
+				maxY = Math.max(maxY, markers.y(m, c));
+			}
+		}
+		// as the Rect constructor from two points
+		lastMarkerBounds.x = (int) minX;
+		lastMarkerBounds.y = (int) minY;
+		lastMarkerBounds.width = (int) maxX - lastMarkerBounds.x;
+		lastMarkerBounds.height = (int) maxY - lastMarkerBounds.y;
+	}
+
+	private static int roundUp(int value) {
+		return (value + ROI_SIZE_STEP - 1) / ROI_SIZE_STEP * ROI_SIZE_STEP;
+	}
+
+	private static int clamp(int value, int min, int max) {
+		return Math.max(min, Math.min(value, max));
+	}
+
+	/**
+	 * Detects the markers with the ID detector, or with the template detector
+	 * of the image size.
+	 */
+	private void detect(Mat image, int offsetX, int offsetY, DetectedMarkers markers) throws NyARException {
+		if (idDetector != null) {
+			idDetector.detect(image, offsetX, offsetY, markers);
+			return;
+		}
+		final MarkerDetector detector = getDetector(image.cols(), image.rows());
+		detector.detect(image, offsetX, offsetY, visibleMarkers, markers);
+		frameSetups.incrementAndGet();
+		frameSetupNanos.addAndGet(detector.lastFrameSetupNanos());
+	}
+
+	/**
+	 * Returns the detector of the image size. The visible markers of a frame
+	 * only filter the results, so a detector is reused whatever markers are
+	 * predicted to be visible.
+	 */
+	private MarkerDetector getDetector(int detectorWidth, int detectorHeight) throws NyARException {
+		final Size size = new Size(detectorWidth, detectorHeight);
+		MarkerDetector detector = detectors.get(size);
+		if (detector == null) {
+			final long start = System.nanoTime();
+			final int[] ids = new int[markerPatterns.size()];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = i;
+			}
+			detector = MarkerDetector.create(ids, arCodes, markerConfig.getMarkerSize(), detectorWidth,
+					detectorHeight);
+			detectorSetupNanos.addAndGet(System.nanoTime() - start);
+			detectorSetups.incrementAndGet();
+			detectors.put(size, detector);
+		}
+		return detector;
+	}
+
+	/**
+	 * @return number of frames in which the whole image has been searched
+	 */
+	public long fullScans() {
+		return fullScans.get();
+	}
+
+	/**
+	 * @return number of frames in which a region of interest has been searched
+	 */
+	public long roiScans() {
+		return roiScans.get();
+	}
+
+	/**
+	 * @return number of marker detectors built, one for each image size, and
+	 *         again after a detector has been evicted
+	 */
+	public long detectorSetups() {
+		return detectorSetups.get();
+	}
+
+	/**
+	 * @return time spent building marker detectors in milliseconds
+	 */
+	public double detectorSetupMillis() {
+		return detectorSetupNanos.get() / 1.0E6;
+	}
+
+	/**
+	 * @return mean time per detection spent handing the image to the marker
+	 *         system in milliseconds
+	 */
+	public double meanFrameSetupMillis() {
+		final long count = frameSetups.get();
+		return count == 0 ? 0 : frameSetupNanos.get() / 1.0E6 / count;
+	}
+
+	/**
+	 * @return number of frames in which only the markers predicted to be
+	 *         visible have been matched at first
+	 */
+	public long prefilteredFrames() {
+		return prefilteredFrames.get();
+	}
+
+	/**
+	 * @return mean number of markers predicted to be visible in the
+	 *         prefiltered frames
+	 */
+	public double meanPrefilteredMarkers() {
+		final long count = prefilteredFrames.get();
+		return count == 0 ? 0 : prefilteredMarkers.get() / (double) count;
+	}
+
+	/**
+	 * @return number of prefiltered frames searched again for all markers
+	 *         because none of the predicted markers has been found
+	 */
+	public long prefilterMisses() {
+		return prefilterMisses.get();
+	}
+
+	/**
+	 * @return number of poses solved by refining the last pose
+	 */
+	public long trackedSolves() {
+		return trackedSolves.get();
+	}
+
+	/**
+	 * @return mean time of a tracking solve in milliseconds
+	 */
+	public double meanTrackedSolveMillis() {
+		final long count = trackedSolves.get();
+		return count == 0 ? 0 : trackedSolveNanos.get() / 1.0E6 / count;
+	}
+
+	/**
+	 * @return number of poses solved without the last pose, by RANSAC or the
+	 *         planar solver, including the tracking fallbacks
+	 */
+	public long fullSolves() {
+		return fullSolves.get();
+	}
+
+	/**
+	 * @return mean time of a solve without the last pose in milliseconds,
+	 *         including the rejected tracking solve of the fallbacks
+	 */
+	public double meanFullSolveMillis() {
+		final long count = fullSolves.get();
+		return count == 0 ? 0 : fullSolveNanos.get() / 1.0E6 / count;
+	}
+
+	/**
+	 * @return number of tracking solves rejected in favour of RANSAC
+	 */
+	public long trackingFallbacks() {
+		return trackingFallbacks.get();
+	}
+
+	/**
+	 * @return the marker RANSAC solver with its statistics, null if OpenCV's
+	 *         RANSAC is used
+	 */
+	public MarkerRansac markerRansac() {
+		return markerRansac;
+	}
 }
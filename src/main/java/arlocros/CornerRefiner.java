@@ -0,0 +1,122 @@
+package arlocros;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Refines marker corners to sub-pixel accuracy with OpenCV's cornerSubPix. Only a small patch
+ * around each corner is converted to gray, so the cost depends on the number of corners and not
+ * on the image size.
+ *
+ * <p>The corners are refined in place and the patch buffers are kept between calls. A refiner is not
+ * thread-safe, each thread uses its own. The statistics may be read from any thread.
+ */
+public final class CornerRefiner {
+
+  // stop criteria of the corner refinement
+  private static final TermCriteria CRITERIA =
+      new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, 20, 0.03);
+  // correction sums are kept in thousandths of a pixel
+  private static final double MILLIPIXELS = 1000;
+  // no dead zone in the middle of the search window
+  private static final Size NO_ZERO_ZONE = new Size(-1, -1);
+
+  private final Mat patchGray = new Mat();
+  private final MatOfPoint2f patchCorner = new MatOfPoint2f();
+  private final float[] patchCornerBuffer = new float[2];
+  private final Size windowSize = new Size();
+  private final AtomicLong frames = new AtomicLong();
+  private final AtomicLong corners = new AtomicLong();
+  private final AtomicLong correctionMillipixels = new AtomicLong();
+  private final AtomicLong refinementNanos = new AtomicLong();
+
+  private CornerRefiner() {}
+
+  public static CornerRefiner create() {
+    return new CornerRefiner();
+  }
+
+  /**
+   * Refines a corner of a detected marker in an RGB or luminance image. A corner too close to the
+   * image border is left as it is.
+   *
+   * @param searchRadius half size of the search window in pixels
+   * @return the distance in pixels by which the corner has been moved
+   */
+  double refine(Mat image, DetectedMarkers markers, int marker, int corner, int searchRadius) {
+    final double cornerX = markers.x(marker, corner);
+    final double cornerY = markers.y(marker, corner);
+    final int patchRadius = searchRadius + 2;
+    final int x = (int) Math.round(cornerX) - patchRadius;
+    final int y = (int) Math.round(cornerY) - patchRadius;
+    final int patchSize = 2 * patchRadius + 1;
+    if (x < 0 || y < 0 || x + patchSize > image.cols() || y + patchSize > image.rows()) {
+      return 0;
+    }
+    final Mat patch = image.submat(y, y + patchSize, x, x + patchSize);
+    if (image.channels() == 1) {
+      patch.copyTo(patchGray);
+    } else {
+      Imgproc.cvtColor(patch, patchGray, Imgproc.COLOR_RGB2GRAY);
+    }
+    patch.release();
+    patchCornerBuffer[0] = (float) (cornerX - x);
+    patchCornerBuffer[1] = (float) (cornerY - y);
+    patchCorner.create(1, 1, CvType.CV_32FC2);
+    patchCorner.put(0, 0, patchCornerBuffer);
+    windowSize.width = searchRadius;
+    windowSize.height = searchRadius;
+    Imgproc.cornerSubPix(patchGray, patchCorner, windowSize, NO_ZERO_ZONE, CRITERIA);
+    patchCorner.get(0, 0, patchCornerBuffer);
+    final double refinedX = patchCornerBuffer[0] + x;
+    final double refinedY = patchCornerBuffer[1] + y;
+    markers.setCorner(marker, corner, refinedX, refinedY);
+    return Math.hypot(refinedX - cornerX, refinedY - cornerY);
+  }
+
+  /**
+   * Refines the corners of the markers detected in a frame in place and records the correction
+   * and the time taken.
+   */
+  void refine(Mat image, DetectedMarkers markers, int searchRadius) {
+    final long start = System.nanoTime();
+    double correction = 0;
+    for (int marker = 0; marker < markers.size(); marker++) {
+      for (int corner = 0; corner < 4; corner++) {
+        correction += refine(image, markers, marker, corner, searchRadius);
+      }
+    }
+    refinementNanos.addAndGet(System.nanoTime() - start);
+    correctionMillipixels.addAndGet(Math.round(correction * MILLIPIXELS));
+    corners.addAndGet(4 * markers.size());
+    frames.incrementAndGet();
+  }
+
+  /** @return mean distance in pixels by which the corners have been moved */
+  public double meanCorrectionPixels() {
+    final long count = corners.get();
+    return count == 0 ? 0 : correctionMillipixels.get() / MILLIPIXELS / count;
+  }
+
+  /** @return mean time per frame spent refining corners in milliseconds */
+  public double meanFrameMillis() {
+    final long count = frames.get();
+    return count == 0
+        ? 0
+        : refinementNanos.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%d frames, %d corners, mean correction %.3f px, %.3f ms per frame",
+        frames.get(), corners.get(), meanCorrectionPixels(), meanFrameMillis());
+  }
+}
@@ -0,0 +1,86 @@
+package arlocros;
+
+import java.util.Arrays;
+
+/**
+ * The markers found in a camera image, with their four corners in image coordinates. The corners
+ * of all markers are kept in one array in the layout the pose solvers take, so the detectors fill
+ * it in place and the solvers read it without a copy. The arrays grow with the number of markers
+ * and are kept when the markers are cleared for the next frame.
+ *
+ * <p>The markers of a frame are allocated once and overwritten by every detection, so they must
+ * only be accessed by the thread currently processing the frame.
+ */
+final class DetectedMarkers {
+
+  private static final int CORNERS = 4;
+  private static final int INITIAL_CAPACITY = 8;
+
+  private int[] ids = new int[INITIAL_CAPACITY];
+  private double[] corners = new double[2 * CORNERS * INITIAL_CAPACITY];
+  private int size;
+
+  private DetectedMarkers() {}
+
+  static DetectedMarkers create() {
+    return new DetectedMarkers();
+  }
+
+  void clear() {
+    size = 0;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Adds a marker, its corners have to be set with {@link #setCorner}.
+   *
+   * @param id the index of the marker in the pattern files of the {@link MarkerMap}
+   * @return the index of the added marker
+   */
+  int add(int id) {
+    if (size == ids.length) {
+      ids = Arrays.copyOf(ids, 2 * size);
+      corners = Arrays.copyOf(corners, 2 * corners.length);
+    }
+    ids[size] = id;
+    return size++;
+  }
+
+  /** The index of the marker in the pattern files of the {@link MarkerMap}. */
+  int id(int marker) {
+    return ids[marker];
+  }
+
+  /**
+   * @param corner the corner in the order of the marker config: upper left, upper right, lower
+   *     right, lower left
+   */
+  double x(int marker, int corner) {
+    return corners[2 * (CORNERS * marker + corner)];
+  }
+
+  double y(int marker, int corner) {
+    return corners[2 * (CORNERS * marker + corner) + 1];
+  }
+
+  void setCorner(int marker, int corner, double x, double y) {
+    corners[2 * (CORNERS * marker + corner)] = x;
+    corners[2 * (CORNERS * marker + corner) + 1] = y;
+  }
+
+  /**
+   * Returns the corners of all markers, x and y of each corner and four corners per marker. The
+   * array is at least as long as needed for the markers, and it is replaced when markers are added
+   * beyond its length.
+   */
+  double[] corners() {
+    return corners;
+  }
+}
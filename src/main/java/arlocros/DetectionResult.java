@@ -0,0 +1,58 @@
+package arlocros;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * The outcome of a pose computation: the camera pose and the numbers of markers, points and
+ * inliers it is based on. A result is allocated once and overwritten by every computation, so it
+ * must not be shared between threads computing poses.
+ */
+public final class DetectionResult {
+
+  private final Mat rvec = new Mat(3, 1, CvType.CV_64F);
+  private final Mat tvec = new Mat(3, 1, CvType.CV_64F);
+  private boolean poseFound;
+  private int markerCount;
+  private int pointCount;
+  private int inlierCount;
+
+  private DetectionResult() {}
+
+  public static DetectionResult create() {
+    return new DetectionResult();
+  }
+
+  void set(boolean poseFound, int markerCount, int pointCount, int inlierCount) {
+    this.poseFound = poseFound;
+    this.markerCount = markerCount;
+    this.pointCount = pointCount;
+    this.inlierCount = inlierCount;
+  }
+
+  /** The rotation of the pose as a Rodrigues vector, only valid if a pose has been found. */
+  public Mat rvec() {
+    return rvec;
+  }
+
+  /** The translation of the pose, only valid if a pose has been found. */
+  public Mat tvec() {
+    return tvec;
+  }
+
+  public boolean poseFound() {
+    return poseFound;
+  }
+
+  public int markerCount() {
+    return markerCount;
+  }
+
+  public int pointCount() {
+    return pointCount;
+  }
+
+  public int inlierCount() {
+    return inlierCount;
+  }
+}
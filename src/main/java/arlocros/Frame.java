@@ -0,0 +1,34 @@
+package arlocros;
+
+import org.opencv.core.Mat;
+import org.ros.message.Time;
+import sensor_msgs.Image;
+
+/**
+ * A camera frame travelling through the stages of the processing pipeline. Frames are allocated
+ * once and recycled, each stage fills in the fields it is responsible for and hands the frame on.
+ * A frame is only accessed by the stage currently holding it.
+ */
+final class Frame {
+
+  /** The received image message, set by the decode stage. */
+  Image message;
+  /** The time the image was captured, taken from the message header by the decode stage. */
+  Time captureTime;
+  /** The camera image, RGB or luminance, set by the decode stage and modified by preprocessing. */
+  final Mat image = new Mat();
+  /** The black and white image written by the binarizer. */
+  final Mat binary = new Mat();
+  /** The image the markers are detected in, either {@link #image} or {@link #binary}. */
+  Mat detectionImage = image;
+  /** The markers found by the detect stage, their corners are refined in place. */
+  final DetectedMarkers markers = DetectedMarkers.create();
+  /** The camera pose computed by the solve stage. */
+  final DetectionResult result = DetectionResult.create();
+
+  private Frame() {}
+
+  static Frame create() {
+    return new Frame();
+  }
+}
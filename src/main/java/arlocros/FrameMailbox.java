@@ -0,0 +1,102 @@
+package arlocros;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A single-slot mailbox between the thread receiving frames and the thread processing them. A new
+ * frame replaces a frame that has not been taken yet, so the processing thread always works on
+ * the latest frame and never falls behind the camera. Replaced frames are counted as dropped.
+ *
+ * @param <T> the type of the frames
+ */
+public final class FrameMailbox<T> {
+
+  private final AtomicReference<Letter<T>> slot = new AtomicReference<>();
+  private final Object lock = new Object();
+  private final AtomicLong received = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final AtomicLong processed = new AtomicLong();
+  private final AtomicLong totalAgeNanos = new AtomicLong();
+  private volatile long lastAgeNanos;
+
+  private FrameMailbox() {}
+
+  public static <T> FrameMailbox<T> create() {
+    return new FrameMailbox<>();
+  }
+
+  /** Puts a frame into the mailbox, replacing the frame waiting there if any. */
+  public void post(T frame) {
+    final Letter<T> replaced = slot.getAndSet(new Letter<>(frame, System.nanoTime()));
+    received.incrementAndGet();
+    if (replaced != null) {
+      dropped.incrementAndGet();
+    }
+    synchronized (lock) {
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Waits for a frame and takes it out of the mailbox. The age of the frame, i.e. the time since
+   * it has been posted, is recorded.
+   *
+   * @return the latest frame
+   */
+  public T take() throws InterruptedException {
+    Letter<T> letter = slot.getAndSet(null);
+    while (letter == null) {
+      synchronized (lock) {
+        if (slot.get() == null) {
+          lock.wait();
+        }
+      }
+      letter = slot.getAndSet(null);
+    }
+    lastAgeNanos = System.nanoTime() - letter.postedNanos;
+    totalAgeNanos.addAndGet(lastAgeNanos);
+    processed.incrementAndGet();
+    return letter.frame;
+  }
+
+  public long received() {
+    return received.get();
+  }
+
+  public long dropped() {
+    return dropped.get();
+  }
+
+  public long processed() {
+    return processed.get();
+  }
+
+  /** @return the age of the last frame taken in milliseconds */
+  public double lastAgeMillis() {
+    return lastAgeNanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  /** @return the mean age of the frames taken in milliseconds */
+  public double meanAgeMillis() {
+    final long count = processed.get();
+    return count == 0 ? 0 : totalAgeNanos.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("received %d, dropped %d, processed %d, mean age %.1f ms", received(),
+        dropped(), processed(), meanAgeMillis());
+  }
+
+  private static final class Letter<T> {
+    private final T frame;
+    private final long postedNanos;
+
+    private Letter(T frame, long postedNanos) {
+      this.frame = frame;
+      this.postedNanos = postedNanos;
+    }
+  }
+}
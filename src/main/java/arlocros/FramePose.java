@@ -0,0 +1,80 @@
+package arlocros;
+
+import org.ros.message.Time;
+import org.ros.rosjava_geometry.Quaternion;
+import org.ros.rosjava_geometry.Transform;
+import org.ros.rosjava_geometry.Vector3;
+
+/**
+ * The camera pose solved in one frame, converted once into the transforms the node publishes. A
+ * pose is immutable, so all outputs can share it without copying or locking.
+ *
+ * <p>The conversion works on the plain rotation vector: its quaternion follows directly from the
+ * axis and angle, and the inverse translation is computed by rotating with the conjugate
+ * quaternion. No OpenCV call, rotation matrix or Euler angles are involved.
+ */
+public final class FramePose {
+
+  private final Time captureTime;
+  private final Transform cameraToMarker;
+  private final Transform mapToCamera;
+
+  private FramePose(Time captureTime, Transform cameraToMarker, Transform mapToCamera) {
+    this.captureTime = captureTime;
+    this.cameraToMarker = cameraToMarker;
+    this.mapToCamera = mapToCamera;
+  }
+
+  /**
+   * Converts the output of the pose solver.
+   *
+   * @param rvec rotation of the markers in the camera frame as a Rodrigues vector, 3 values
+   * @param tvec translation of the markers in the camera frame, 3 values
+   * @param captureTime the time the image of the frame was captured, which must not be modified
+   *     afterwards
+   */
+  public static FramePose create(double[] rvec, double[] tvec, Time captureTime) {
+    final double angle = Math.sqrt(rvec[0] * rvec[0] + rvec[1] * rvec[1] + rvec[2] * rvec[2]);
+    // sin(angle / 2) / angle, which tends to 1/2 for small angles
+    final double scale = angle < 1e-12 ? 0.5 : Math.sin(angle / 2) / angle;
+    final double qx = rvec[0] * scale;
+    final double qy = rvec[1] * scale;
+    final double qz = rvec[2] * scale;
+    final double qw = Math.cos(angle / 2);
+    final double tx = tvec[0];
+    final double ty = tvec[1];
+    final double tz = tvec[2];
+
+    final Transform cameraToMarker =
+        new Transform(new Vector3(tx, ty, tz), new Quaternion(qx, qy, qz, qw));
+
+    // the map to camera transform is the inverse: the conjugate rotation and the translation
+    // -R^T * tvec, where R^T * t = t + 2 qw (t x q) + 2 ((t x q) x q) for the unit quaternion q
+    final double cx = ty * qz - tz * qy;
+    final double cy = tz * qx - tx * qz;
+    final double cz = tx * qy - ty * qx;
+    final Transform mapToCamera =
+        new Transform(
+            new Vector3(
+                -(tx + 2 * (qw * cx + cy * qz - cz * qy)),
+                -(ty + 2 * (qw * cy + cz * qx - cx * qz)),
+                -(tz + 2 * (qw * cz + cx * qy - cy * qx))),
+            new Quaternion(-qx, -qy, -qz, qw));
+    return new FramePose(captureTime, cameraToMarker, mapToCamera);
+  }
+
+  /** The time the image of the frame was captured, the time all outputs are stamped with. */
+  public Time captureTime() {
+    return captureTime;
+  }
+
+  /** The pose of the marker frame in the camera frame. */
+  public Transform cameraToMarker() {
+    return cameraToMarker;
+  }
+
+  /** The pose of the camera frame in the map (marker) frame. */
+  public Transform mapToCamera() {
+    return mapToCamera;
+  }
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2016 Marvin Ferber.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package arlocros;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Detects the 4x4 grid markers by reading their bits instead of matching
+ * templates. Each marker is a square of 8x8 cells, a black border of two cells
+ * around a 4x4 grid of black and white cells. The grid of each marker is taken
+ * from its pattern file, the 16 bit code of the grid in each of the four
+ * rotations indexes a table of all markers. The cost of identifying a marker
+ * does not depend on the number of markers.
+ * <p>
+ * Quads are found as convex four-sided contours of the adaptively thresholded
+ * image. Each quad is warped to a square, the border cells must be black and
+ * the grid cells give the code.
+ */
+final class IdMarkerDetector {
+
+	private static final Logger logger = LoggerFactory.getLogger(IdMarkerDetector.class);
+
+	// cells of the grid inside the border
+	static final int GRID_CELLS = 4;
+	private static final int BORDER_CELLS = 2;
+	private static final int MARKER_CELLS = GRID_CELLS + 2 * BORDER_CELLS;
+	// side of a cell in the warped marker image
+	private static final int CELL_PIXELS = 6;
+	private static final int WARPED_SIZE = MARKER_CELLS * CELL_PIXELS;
+	private static final Size WARPED_SIZE_2D = new Size(WARPED_SIZE, WARPED_SIZE);
+	// smallest marker side in pixels that can still be read
+	private static final double MIN_SIDE = 2 * MARKER_CELLS;
+	// table entries without a marker and with codes of several markers
+	private static final int NO_MARKER = 0;
+	private static final int AMBIGUOUS = -1;
+
+	private final List<String> markerPatterns;
+	private final int blockSize;
+	private final double offset;
+	// code -> (marker index << 2 | rotation) + 1
+	private final int[] table = new int[1 << (GRID_CELLS * GRID_CELLS)];
+
+	private final Mat gray = new Mat();
+	private final Mat binary = new Mat();
+	private final Mat hierarchy = new Mat();
+	private final MatOfPoint2f contour2f = new MatOfPoint2f();
+	private final MatOfPoint2f approx = new MatOfPoint2f();
+	private final MatOfPoint2f quadCorners = new MatOfPoint2f();
+	private final MatOfPoint2f warpedCorners = new MatOfPoint2f(new Point(0, 0), new Point(WARPED_SIZE, 0),
+			new Point(WARPED_SIZE, WARPED_SIZE), new Point(0, WARPED_SIZE));
+	private final Mat warped = new Mat();
+	private final Mat warpedBinary = new Mat();
+	private final byte[] warpedPixels = new byte[WARPED_SIZE * WARPED_SIZE];
+	// perimeter of the quad of each marker added in the current detection
+	private double[] perimeters = new double[8];
+
+	private IdMarkerDetector(List<String> markerPatterns, List<Integer> gridCodes, int blockRadius, int offset) {
+		this.markerPatterns = markerPatterns;
+		this.blockSize = 2 * blockRadius + 1;
+		this.offset = offset;
+		for (int i = 0; i < gridCodes.size(); i++) {
+			int code = gridCodes.get(i);
+			if (code < 0) {
+				logger.info("Pattern {} is not a 4x4 grid and cannot be decoded.", markerPatterns.get(i));
+				continue;
+			}
+			for (int rotation = 0; rotation < 4; rotation++) {
+				final int entry = (i << 2 | rotation) + 1;
+				final int previous = table[code];
+				if (previous == NO_MARKER) {
+					table[code] = entry;
+				} else if (previous != AMBIGUOUS && (previous - 1) >> 2 != i) {
+					logger.info("Patterns {} and {} have the same grid.", markerPatterns.get((previous - 1) >> 2),
+							markerPatterns.get(i));
+					table[code] = AMBIGUOUS;
+				} else if (previous != AMBIGUOUS) {
+					// a symmetric grid has no unique rotation
+					table[code] = AMBIGUOUS;
+				}
+				code = rotateClockwise(code);
+			}
+		}
+	}
+
+	/**
+	 * @param markerPatterns
+	 *            pattern file of each marker
+	 * @param gridCodes
+	 *            grid code of each marker, in the same order, see
+	 *            {@link #gridCode(int[], int)}
+	 * @param blockRadius
+	 *            half the block size of the adaptive threshold
+	 * @param offset
+	 *            offset of the adaptive threshold
+	 */
+	static IdMarkerDetector create(List<String> markerPatterns, List<Integer> gridCodes, int blockRadius,
+			int offset) {
+		return new IdMarkerDetector(markerPatterns, gridCodes, blockRadius, offset);
+	}
+
+	/**
+	 * Computes the grid code of a marker pattern. Bit {@code 4 * row + column}
+	 * is set if the cell is black.
+	 *
+	 * @param pixels
+	 *            X8R8G8B8 pixels of the upright pattern
+	 * @param patternSize
+	 *            width and height of the pattern, a multiple of 4
+	 * @return the code, or -1 if the pattern is not a grid of uniform cells
+	 */
+	static int gridCode(int[] pixels, int patternSize) {
+		final int cellSize = patternSize / GRID_CELLS;
+		int code = 0;
+		for (int row = 0; row < GRID_CELLS; row++) {
+			for (int column = 0; column < GRID_CELLS; column++) {
+				int black = 0;
+				for (int y = row * cellSize; y < (row + 1) * cellSize; y++) {
+					for (int x = column * cellSize; x < (column + 1) * cellSize; x++) {
+						if ((pixels[y * patternSize + x] & 0xff) < 128) {
+							black++;
+						}
+					}
+				}
+				if (black == cellSize * cellSize) {
+					code |= 1 << (row * GRID_CELLS + column);
+				} else if (black != 0) {
+					return -1;
+				}
+			}
+		}
+		return code;
+	}
+
+	/** @return the code of the grid rotated clockwise by 90 degrees */
+	private static int rotateClockwise(int code) {
+		int rotated = 0;
+		for (int row = 0; row < GRID_CELLS; row++) {
+			for (int column = 0; column < GRID_CELLS; column++) {
+				// the cell at (row, column) comes from (n - 1 - column, row)
+				if ((code & 1 << ((GRID_CELLS - 1 - column) * GRID_CELLS + row)) != 0) {
+					rotated |= 1 << (row * GRID_CELLS + column);
+				}
+			}
+		}
+		return rotated;
+	}
+
+	/**
+	 * Detects the markers in an image and adds them to the markers of the
+	 * frame.
+	 *
+	 * @param image
+	 *            RGB or luminance image, may be a submat of a larger image
+	 * @param offsetX
+	 *            x coordinate of the image in the camera image
+	 * @param offsetY
+	 *            y coordinate of the image in the camera image
+	 * @param markers
+	 *            receives the detected markers with corners in camera image
+	 *            coordinates
+	 */
+	void detect(Mat image, int offsetX, int offsetY, DetectedMarkers markers) {
+		if (image.channels() == 1) {
+			image.copyTo(gray);
+		} else {
+			Imgproc.cvtColor(image, gray, Imgproc.COLOR_RGB2GRAY);
+		}
+		// the black marker borders become white
+		Imgproc.adaptiveThreshold(gray, binary, 255, Imgproc.ADAPTIVE_THRESH_MEAN_C, Imgproc.THRESH_BINARY_INV,
+				blockSize, offset);
+		final List<MatOfPoint> contours = new ArrayList<>();
+		Imgproc.findContours(binary, contours, hierarchy, Imgproc.RETR_LIST, Imgproc.CHAIN_APPROX_SIMPLE);
+
+		final int first = markers.size();
+		try {
+			for (final MatOfPoint contour : contours) {
+				if (contour.rows() < 4) {
+					continue;
+				}
+				contour.convertTo(contour2f, CvType.CV_32FC2);
+				final double perimeter = Imgproc.arcLength(contour2f, true);
+				if (perimeter < 4 * MIN_SIDE) {
+					continue;
+				}
+				Imgproc.approxPolyDP(contour2f, approx, 0.05 * perimeter, true);
+				if (approx.rows() != 4) {
+					continue;
+				}
+				final Point[] quad = approx.toArray();
+				if (!isConvexClockwise(quad)) {
+					continue;
+				}
+				final int entry = decode(quad);
+				if (entry <= NO_MARKER) {
+					continue;
+				}
+				final int index = (entry - 1) >> 2;
+				final int rotation = (entry - 1) & 3;
+				final int marker = addLargest(markers, first, index, perimeter);
+				if (marker < 0) {
+					continue;
+				}
+				// the upper left corner of the pattern is the corner the grid has
+				// been rotated to
+				for (int i = 0; i < 4; i++) {
+					final Point corner = quad[(rotation + i) % 4];
+					markers.setCorner(marker, i, corner.x + offsetX, corner.y + offsetY);
+				}
+			}
+		} finally {
+			// the contours are native memory, do not leave them to the finalizers
+			for (final MatOfPoint contour : contours) {
+				contour.release();
+			}
+		}
+	}
+
+	/**
+	 * Orders the quad clockwise in image coordinates.
+	 *
+	 * @return false if the quad is not convex
+	 */
+	private static boolean isConvexClockwise(Point[] quad) {
+		int positive = 0;
+		int negative = 0;
+		for (int i = 0; i < 4; i++) {
+			final Point a = quad[i];
+			final Point b = quad[(i + 1) % 4];
+			final Point c = quad[(i + 2) % 4];
+			final double cross = (b.x - a.x) * (c.y - b.y) - (b.y - a.y) * (c.x - b.x);
+			if (cross > 0) {
+				positive++;
+			} else if (cross < 0) {
+				negative++;
+			}
+		}
+		if (negative == 4) {
+			// counterclockwise with the y axis pointing down
+			final Point swap = quad[1];
+			quad[1] = quad[3];
+			quad[3] = swap;
+			return true;
+		}
+		return positive == 4;
+	}
+
+	/**
+	 * Reads the grid of a quad.
+	 *
+	 * @return the table entry of the grid code, or a value not above
+	 *         {@link #NO_MARKER} if the quad is not a known marker
+	 */
+	private int decode(Point[] quad) {
+		quadCorners.fromArray(quad);
+		final Mat transform = Imgproc.getPerspectiveTransform(quadCorners, warpedCorners);
+		Imgproc.warpPerspective(gray, warped, transform, WARPED_SIZE_2D);
+		transform.release();
+		Imgproc.threshold(warped, warpedBinary, 0, 255, Imgproc.THRESH_BINARY | Imgproc.THRESH_OTSU);
+		warpedBinary.get(0, 0, warpedPixels);
+
+		int code = 0;
+		for (int row = 0; row < MARKER_CELLS; row++) {
+			for (int column = 0; column < MARKER_CELLS; column++) {
+				final boolean black = isBlack(row, column);
+				final boolean border = row < BORDER_CELLS || row >= MARKER_CELLS - BORDER_CELLS
+						|| column < BORDER_CELLS || column >= MARKER_CELLS - BORDER_CELLS;
+				if (border) {
+					if (!black) {
+						return NO_MARKER;
+					}
+				} else if (black) {
+					code |= 1 << ((row - BORDER_CELLS) * GRID_CELLS + column - BORDER_CELLS);
+				}
+			}
+		}
+		return table[code];
+	}
+
+	/** A cell is black if most pixels away from its edges are black. */
+	private boolean isBlack(int row, int column) {
+		int black = 0;
+		for (int y = row * CELL_PIXELS + 1; y < (row + 1) * CELL_PIXELS - 1; y++) {
+			for (int x = column * CELL_PIXELS + 1; x < (column + 1) * CELL_PIXELS - 1; x++) {
+				if (warpedPixels[y * WARPED_SIZE + x] == 0) {
+					black++;
+				}
+			}
+		}
+		return 2 * black > (CELL_PIXELS - 2) * (CELL_PIXELS - 2);
+	}
+
+	/**
+	 * Adds a marker unless it has been found already in this detection, e.g.
+	 * for the inner and the outer contour of its border, and keeps the larger
+	 * quad.
+	 *
+	 * @param first
+	 *            index of the first marker added in this detection
+	 * @return the index of the marker whose corners are to be set, or -1 if
+	 *         the marker has been found with a larger quad
+	 */
+	private int addLargest(DetectedMarkers markers, int first, int id, double perimeter) {
+		for (int i = first; i < markers.size(); i++) {
+			if (markers.id(i) == id) {
+				if (perimeter > perimeters[i - first]) {
+					perimeters[i - first] = perimeter;
+					return i;
+				}
+				return -1;
+			}
+		}
+		final int marker = markers.add(id);
+		if (marker - first == perimeters.length) {
+			perimeters = Arrays.copyOf(perimeters, 2 * perimeters.length);
+		}
+		perimeters[marker - first] = perimeter;
+		return marker;
+	}
+}
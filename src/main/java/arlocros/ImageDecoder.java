@@ -0,0 +1,150 @@
+package arlocros;
+
+import com.google.common.collect.ImmutableMap;
+import org.jboss.netty.buffer.ChannelBuffer;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+import sensor_msgs.Image;
+
+import java.util.Map;
+
+/**
+ * Copies the pixel data of a {@link Image} message into an OpenCV {@link Mat}. The destination Mat
+ * and the staging buffer are reused between frames, so in the steady state decoding a frame does
+ * not allocate any memory.
+ *
+ * <p>The OpenCV Java bindings cannot wrap memory owned by Java, so one copy into the native Mat is
+ * always needed. The message buffer is handed to OpenCV as it is if the pixel data starts at the
+ * beginning of its backing array and the rows are not padded. Otherwise the rows are gathered into
+ * the staging buffer first, skipping the padding given by the image step.
+ *
+ * <p>Besides rgb8, the decoder converts bgr8, mono8, the bayer_* encodings and yuv422 directly to
+ * the single-channel luminance image the marker detection needs.
+ */
+public final class ImageDecoder {
+
+  public static final String RGB8 = "rgb8";
+
+  private static final int NO_CONVERSION = -1;
+
+  /**
+   * Supported encodings. The Bayer conversion codes follow cv_bridge, OpenCV names the Bayer
+   * patterns after the second row.
+   */
+  private static final Map<String, Encoding> ENCODINGS =
+      ImmutableMap.<String, Encoding>builder()
+          .put(RGB8, new Encoding(CvType.CV_8UC3, Imgproc.COLOR_RGB2GRAY))
+          .put("bgr8", new Encoding(CvType.CV_8UC3, Imgproc.COLOR_BGR2GRAY))
+          .put("mono8", new Encoding(CvType.CV_8UC1, NO_CONVERSION))
+          .put("bayer_rggb8", new Encoding(CvType.CV_8UC1, Imgproc.COLOR_BayerBG2GRAY))
+          .put("bayer_bggr8", new Encoding(CvType.CV_8UC1, Imgproc.COLOR_BayerRG2GRAY))
+          .put("bayer_gbrg8", new Encoding(CvType.CV_8UC1, Imgproc.COLOR_BayerGR2GRAY))
+          .put("bayer_grbg8", new Encoding(CvType.CV_8UC1, Imgproc.COLOR_BayerGB2GRAY))
+          .put("yuv422", new Encoding(CvType.CV_8UC2, Imgproc.COLOR_YUV2GRAY_UYVY))
+          .build();
+
+  private byte[] stagingBuffer = new byte[0];
+  private final Mat raw = new Mat();
+
+  private ImageDecoder() {}
+
+  public static ImageDecoder create() {
+    return new ImageDecoder();
+  }
+
+  /**
+   * Returns true if images of the encoding can be decoded to luminance.
+   *
+   * @param encoding the encoding of an image message, case insensitive
+   */
+  public static boolean isSupported(String encoding) {
+    return ENCODINGS.containsKey(encoding.toLowerCase());
+  }
+
+  /**
+   * Decodes an image message into a single-channel 8-bit luminance image. mono8 images are copied
+   * as they are, all other encodings are converted in a single OpenCV call.
+   *
+   * @param source the image message, its encoding has to be supported
+   * @param luminance the Mat to write the luminance to
+   * @return the luminance Mat
+   */
+  public Mat decodeLuminance(Image source, Mat luminance) {
+    final Encoding encoding = ENCODINGS.get(source.getEncoding().toLowerCase());
+    if (encoding == null) {
+      throw new IllegalArgumentException(
+          String.format("Image encoding %s is not supported.", source.getEncoding()));
+    }
+    if (encoding.luminanceConversion == NO_CONVERSION) {
+      return decode(source, luminance, encoding.rawType);
+    }
+    decode(source, raw, encoding.rawType);
+    Imgproc.cvtColor(raw, luminance, encoding.luminanceConversion);
+    return luminance;
+  }
+
+  /**
+   * Decodes an image message into a Mat. The destination is only reallocated if its size or type
+   * differs from the image.
+   *
+   * @param source the image message
+   * @param destination the Mat to write the pixels to
+   * @param type the OpenCV type matching the image encoding, e.g. CV_8UC3 for rgb8
+   * @return the destination Mat
+   */
+  public Mat decode(Image source, Mat destination, int type) {
+    final int rows = source.getHeight();
+    final int cols = source.getWidth();
+    destination.create(rows, cols, type);
+
+    final int rowBytes = cols * (int) destination.elemSize();
+    final int step = source.getStep();
+    final ChannelBuffer data = source.getData();
+    // the messages are only built when a check fails, this runs for every frame
+    if (step < rowBytes) {
+      throw new IllegalArgumentException(
+          String.format("Image step %d is smaller than the row size %d.", step, rowBytes));
+    }
+    if (rows > 0 && data.readableBytes() < (rows - 1) * step + rowBytes) {
+      throw new IllegalArgumentException(
+          String.format("Image data has %d bytes, but %d rows of step %d are expected.",
+              data.readableBytes(), rows, step));
+    }
+
+    final int readerIndex = data.readerIndex();
+    if (data.hasArray()
+        && data.arrayOffset() + readerIndex == 0
+        && step == rowBytes
+        && data.array().length % destination.channels() == 0) {
+      // OpenCV copies only as many bytes as the Mat holds, the rest of the array is ignored
+      destination.put(0, 0, data.array());
+      return destination;
+    }
+
+    final int size = rows * rowBytes;
+    // OpenCV rejects arrays that are not a multiple of the channel count, so keep the exact size
+    if (stagingBuffer.length != size) {
+      stagingBuffer = new byte[size];
+    }
+    if (step == rowBytes) {
+      data.getBytes(readerIndex, stagingBuffer, 0, size);
+    } else {
+      for (int row = 0; row < rows; row++) {
+        data.getBytes(readerIndex + row * step, stagingBuffer, row * rowBytes, rowBytes);
+      }
+    }
+    destination.put(0, 0, stagingBuffer);
+    return destination;
+  }
+
+  private static final class Encoding {
+    private final int rawType;
+    private final int luminanceConversion;
+
+    private Encoding(int rawType, int luminanceConversion) {
+      this.rawType = rawType;
+      this.luminanceConversion = luminanceConversion;
+    }
+  }
+}
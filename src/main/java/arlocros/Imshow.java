@@ -46,6 +46,10 @@ public class Imshow {
 	public JFrame Window;
 	private ImageIcon image;
 	private JLabel label;
+	// the image shown and the one written next, they take turns so that the
+	// window never paints an image while it is written
+	private BufferedImage shownImage;
+	private BufferedImage nextImage;
 
 	private Boolean SizeCustom;
 	private int Height, Width;
@@ -68,9 +72,12 @@ public class Imshow {
 	}
 
 	/**
+	 * Shows the image. Two buffered images holding the pixels are reused as
+	 * long as the image size and type stay the same.
+	 *
 	 * @param opencvImage
 	 */
-	public static void show(Mat opencvImage) {
+	public static synchronized void show(Mat opencvImage) {
 		
 		Dimension frameSize = new Dimension(opencvImage.rows(), opencvImage.cols());
 		if (frame == null) {
@@ -82,21 +89,22 @@ public class Imshow {
 				Imgproc.resize(opencvImage, opencvImage, new Size(frame.Height, frame.Width));
 			}
 		}
-		BufferedImage bufImage = null;
 		try {
 
 			int type = BufferedImage.TYPE_BYTE_GRAY;
 			if (opencvImage.channels() > 1) {
 				type = BufferedImage.TYPE_3BYTE_BGR;
 			}
-			int bufferSize = opencvImage.channels() * opencvImage.cols() * opencvImage.rows();
-			byte[] b = new byte[bufferSize];
-			opencvImage.get(0, 0, b);
-			BufferedImage bufferedImage = new BufferedImage(opencvImage.cols(), opencvImage.rows(), type);
+			BufferedImage bufferedImage = frame.nextImage;
+			if (bufferedImage == null || bufferedImage.getWidth() != opencvImage.cols()
+					|| bufferedImage.getHeight() != opencvImage.rows() || bufferedImage.getType() != type) {
+				bufferedImage = new BufferedImage(opencvImage.cols(), opencvImage.rows(), type);
+			}
 			final byte[] targetPixels = ((DataBufferByte) bufferedImage.getRaster().getDataBuffer()).getData();
-			System.arraycopy(b, 0, targetPixels, 0, b.length);
-			bufImage = bufferedImage;
-			frame.image.setImage(bufImage);
+			opencvImage.get(0, 0, targetPixels);
+			frame.image.setImage(bufferedImage);
+			frame.nextImage = frame.shownImage;
+			frame.shownImage = bufferedImage;
 			frame.Window.pack();
 			frame.label.updateUI();
 			//frame.Window.setVisible(true);
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2016 Marvin Ferber.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package arlocros;
+
+import jp.nyatla.nyartoolkit.core.NyARException;
+import jp.nyatla.nyartoolkit.core.raster.rgb.NyARRgbRaster;
+import jp.nyatla.nyartoolkit.core.types.NyARBufferType;
+import jp.nyatla.nyartoolkit.core.types.NyARIntSize;
+import jp.nyatla.nyartoolkit.markersystem.NyARSensor;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * NyARSensor fed with 8-bit luminance images. The marker system searches the
+ * squares in the grayscale raster of the sensor, which NyARSensor converts
+ * from an RGB raster for every frame. Here the luminance is written into the
+ * grayscale raster directly and no three-channel copy of the image is made.
+ * <p>
+ * The marker patterns are sampled from the source raster of the sensor, which
+ * is an INT1D_GRAY_8 raster over the buffer of the grayscale raster, i.e. each
+ * gray value reads as equal red, green and blue. As both rasters share the
+ * buffer, the conversion of NyARSensor would only copy the buffer onto
+ * itself, so the grayscale raster is marked as up to date instead.
+ */
+final class LuminanceSensor extends NyARSensor {
+
+	private final int width;
+	private final int height;
+	// the buffer of the grayscale raster, one value per pixel
+	private final int[] gray;
+	private final byte[] luminance;
+	private final NyARRgbRaster sourceRaster;
+
+	private LuminanceSensor(int width, int height) throws NyARException {
+		super(new NyARIntSize(width, height));
+		this.width = width;
+		this.height = height;
+		gray = (int[]) _gs_raster.getBuffer();
+		luminance = new byte[width * height];
+		sourceRaster = new NyARRgbRaster(width, height, NyARBufferType.INT1D_GRAY_8, false);
+		sourceRaster.wrapBuffer(gray);
+	}
+
+	static LuminanceSensor create(int width, int height) throws NyARException {
+		return new LuminanceSensor(width, height);
+	}
+
+	/**
+	 * Hands the next image to the sensor.
+	 *
+	 * @param image
+	 *            8-bit single-channel image of the sensor size, may be a
+	 *            submat of a larger image
+	 */
+	void update(Mat image) throws NyARException {
+		// the message is only built when the check fails, this runs for every
+		// frame
+		if (image.type() != CvType.CV_8UC1 || image.cols() != width || image.rows() != height) {
+			throw new IllegalArgumentException(
+					"Expected a " + width + "x" + height + " luminance image, but got " + image);
+		}
+		image.get(0, 0, luminance);
+		for (int i = 0; i < luminance.length; i++) {
+			gray[i] = luminance[i] & 0xff;
+		}
+		update(sourceRaster);
+		_gs_id_ts = _src_ts;
+	}
+}
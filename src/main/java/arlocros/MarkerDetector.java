@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2016 Marvin Ferber.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package arlocros;
+
+import jp.nyatla.nyartoolkit.core.NyARCode;
+import jp.nyatla.nyartoolkit.core.NyARException;
+import jp.nyatla.nyartoolkit.core.param.NyARCameraDistortionFactorV2;
+import jp.nyatla.nyartoolkit.core.param.NyARParam;
+import jp.nyatla.nyartoolkit.core.param.NyARPerspectiveProjectionMatrix;
+import jp.nyatla.nyartoolkit.core.types.NyARIntPoint2d;
+import jp.nyatla.nyartoolkit.core.types.NyARIntSize;
+import jp.nyatla.nyartoolkit.markersystem.NyARMarkerSystem;
+import jp.nyatla.nyartoolkit.markersystem.NyARMarkerSystemConfig;
+import jp.nyatla.nyartoolkit.markersystem.NyARSensor;
+import org.opencv.core.Mat;
+
+import javax.annotation.Nullable;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Detects the AR markers in images of one fixed size using the NyARToolkit
+ * marker system. ComputePose keeps one detector for each image size it
+ * searches, e.g. the full camera image and the regions of interest around
+ * previously detected markers.
+ * <p>
+ * The marker system, the sensor and the registered markers are created once.
+ * A marker system keeps reporting a lost marker for a few frames, so only the
+ * markers seen in the current frame, i.e. with a lost count of zero, are
+ * returned. This gives the same result as a fresh marker system per frame.
+ * <p>
+ * RGB images are handed to NyARToolkit through an RGB raster, luminance
+ * images through a {@link LuminanceSensor}. Each is created with the first
+ * image of its kind, which does not change while the node is running.
+ */
+final class MarkerDetector {
+
+	private final int[] markerIds;
+	private final int width;
+	private final int height;
+	private final NyARIntSize screenSize;
+	private final NyARMarkerSystem markerSystemState;
+	// raster and sensor of RGB images, null until the first RGB image
+	private NyARImageHelper imageRaster;
+	private NyARSensor cameraSensorWrapper;
+	// sensor of luminance images, null until the first luminance image
+	private LuminanceSensor luminanceSensor;
+	private final int[] ids;
+	// time spent handing the last image to the marker system
+	private long lastFrameSetupNanos;
+
+	private MarkerDetector(int[] markerIds, List<NyARCode> arCodes, float markerSize, int width,
+			int height) throws NyARException {
+		this.markerIds = markerIds;
+		this.width = width;
+		this.height = height;
+		// create and load camera specific classes
+		screenSize = new NyARIntSize(width, height);
+		final NyARParam i_param = new NyARParam(screenSize, new NyARPerspectiveProjectionMatrix(),
+				new NyARCameraDistortionFactorV2());
+		// marker system, the sensor passing cam pictures to it is created with
+		// the first image
+		markerSystemState = new NyARMarkerSystem(new NyARMarkerSystemConfig(i_param));
+		ids = new int[markerIds.length];
+		for (int i = 0; i < markerIds.length; i++) {
+			// add marker description to marker system
+			ids[i] = markerSystemState.addARMarker(arCodes.get(i), 25, markerSize);
+		}
+	}
+
+	/**
+	 * @param markerIds
+	 *            id of each marker in the marker map
+	 * @param arCodes
+	 *            loaded pattern of each marker, in the same order
+	 */
+	static MarkerDetector create(int[] markerIds, List<NyARCode> arCodes, float markerSize, int width, int height)
+			throws NyARException {
+		return new MarkerDetector(markerIds, arCodes, markerSize, width, height);
+	}
+
+	/**
+	 * Detects the markers in an image of the detector size and adds them to
+	 * the markers of the frame.
+	 *
+	 * @param image
+	 *            RGB or luminance image, may be a submat of a larger image
+	 * @param offsetX
+	 *            x coordinate of the image in the camera image
+	 * @param offsetY
+	 *            y coordinate of the image in the camera image
+	 * @param reportedMarkers
+	 *            ids of the markers to report, null for all markers
+	 * @param markers
+	 *            receives the detected markers with corners in camera image
+	 *            coordinates
+	 */
+	void detect(Mat image, int offsetX, int offsetY, @Nullable BitSet reportedMarkers, DetectedMarkers markers)
+			throws NyARException {
+		final long start = System.nanoTime();
+		// convert image to NyAR style for processing
+		final NyARSensor sensor;
+		if (image.channels() == 1) {
+			if (luminanceSensor == null) {
+				luminanceSensor = LuminanceSensor.create(width, height);
+			}
+			luminanceSensor.update(image);
+			sensor = luminanceSensor;
+		} else {
+			if (cameraSensorWrapper == null) {
+				// raster handing the images to NyARToolkit, reused for every
+				// frame
+				imageRaster = NyARImageHelper.create(width, height);
+				cameraSensorWrapper = new NyARSensor(screenSize);
+			}
+			cameraSensorWrapper.update(imageRaster.update(image));
+			sensor = cameraSensorWrapper;
+		}
+		lastFrameSetupNanos = System.nanoTime() - start;
+
+		markerSystemState.update(sensor);
+
+		for (int i = 0; i < ids.length; i++) {
+			final int id = ids[i];
+			if (reportedMarkers != null && !reportedMarkers.get(markerIds[i])) {
+				continue;
+			}
+			// process only if this marker has been detected in this frame
+			if (markerSystemState.isExistMarker(id) && markerSystemState.getLostCount(id) == 0
+					&& markerSystemState.getConfidence(id) > 0.7) {
+				final NyARIntPoint2d[] vertex2d = markerSystemState.getMarkerVertex2D(id);
+				final int marker = markers.add(markerIds[i]);
+				for (int c = 0; c < 4; c++) {
+					markers.setCorner(marker, c, vertex2d[c].x + offsetX, vertex2d[c].y + offsetY);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the time in nanoseconds spent in the last call of detect to hand
+	 *         the image to the marker system
+	 */
+	long lastFrameSetupNanos() {
+		return lastFrameSetupNanos;
+	}
+}
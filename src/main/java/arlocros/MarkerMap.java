@@ -0,0 +1,94 @@
+package arlocros;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+import jp.nyatla.nyartoolkit.core.NyARCode;
+import jp.nyatla.nyartoolkit.core.NyARException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The marker configuration together with the NyARToolkit codes of the marker patterns. It is
+ * loaded once and shared by the pose estimators of all cameras, the codes are only read during the
+ * detection.
+ */
+public final class MarkerMap {
+
+  private static final Logger logger = LoggerFactory.getLogger(MarkerMap.class);
+
+  // compiled patterns, stored in the pattern directory
+  private static final String PATTERN_CACHE_FILE = "patterns.cache";
+  private static final int PATTERN_SIZE = 16;
+
+  private final MarkerConfig markerConfig;
+  private final ImmutableList<String> patternFiles;
+  private final ImmutableList<NyARCode> arCodes;
+  private final ImmutableList<Integer> gridCodes;
+
+  private MarkerMap(
+      MarkerConfig markerConfig,
+      ImmutableList<String> patternFiles,
+      ImmutableList<NyARCode> arCodes,
+      ImmutableList<Integer> gridCodes) {
+    this.markerConfig = markerConfig;
+    this.patternFiles = patternFiles;
+    this.arCodes = arCodes;
+    this.gridCodes = gridCodes;
+  }
+
+  public static MarkerMap load(String markerConfigFile, String patternDirectory)
+      throws NyARException, IOException {
+    final MarkerConfig markerConfig =
+        MarkerConfig.createFromConfig(markerConfigFile, patternDirectory);
+    final List<String> patternFiles = markerConfig.getPatternFileList();
+    if (patternFiles.isEmpty()) {
+      logger.info(
+          "Cannot load any marker. Probably there is something wrong with the marker config file.");
+    }
+    final long start = System.nanoTime();
+    final PatternCache patternCache =
+        PatternCache.open(new File(patternDirectory, PATTERN_CACHE_FILE), PATTERN_SIZE, PATTERN_SIZE);
+    final ImmutableList.Builder<NyARCode> arCodes = ImmutableList.builder();
+    final ImmutableList.Builder<Integer> gridCodes = ImmutableList.builder();
+    for (final String patternFile : patternFiles) {
+      // create marker description from pattern file
+      final int[] pixels = patternCache.pixels(Files.toByteArray(new File(patternFile)));
+      arCodes.add(patternCache.toCode(pixels));
+      // the first direction is the upright pattern
+      gridCodes.add(IdMarkerDetector.gridCode(pixels, PATTERN_SIZE));
+    }
+    patternCache.saveIfChanged();
+    logger.info(
+        "Loaded {} marker patterns in {} ms",
+        patternFiles.size(),
+        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    return new MarkerMap(
+        markerConfig, ImmutableList.copyOf(patternFiles), arCodes.build(), gridCodes.build());
+  }
+
+  public MarkerConfig markerConfig() {
+    return markerConfig;
+  }
+
+  /** @return the pattern files of the markers, in the order of {@link #arCodes()} */
+  public ImmutableList<String> patternFiles() {
+    return patternFiles;
+  }
+
+  public ImmutableList<NyARCode> arCodes() {
+    return arCodes;
+  }
+
+  /**
+   * @return the 4x4 grid code of each marker in the order of {@link #patternFiles()}, -1 for
+   *     patterns that are not a grid
+   */
+  public ImmutableList<Integer> gridCodes() {
+    return gridCodes;
+  }
+}
@@ -0,0 +1,314 @@
+package arlocros;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.MatOfPoint3f;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A RANSAC pose solver whose hypotheses are the poses of single markers. The four corners of a
+ * marker are either all detected correctly or belong to a wrong detection, so a marker is far more
+ * likely to be an all-inlier sample than four random points.
+ *
+ * <p>The markers are tried in random order. The search stops when
+ *
+ * <ul>
+ *   <li>all points are inliers of the best pose,
+ *   <li>the share of markers consistent with the best pose makes finding a better pose unlikely at
+ *       the configured confidence,
+ *   <li>every marker has been tried,
+ *   <li>the maximum number of hypotheses has been tried, or
+ *   <li>the time budget of the frame is used up.
+ * </ul>
+ *
+ * The best pose is then refined on all its inliers. The buffers are kept between frames, a solver
+ * is not thread-safe. The statistics may be read from any thread.
+ */
+public final class MarkerRansac {
+
+  /** Why the search for hypotheses stopped. */
+  public enum Exit {
+    ALL_INLIERS,
+    CONFIDENCE,
+    ALL_MARKERS,
+    MAX_ITERATIONS,
+    TIME_BUDGET
+  }
+
+  private final Mat cameraMatrix;
+  private final MatOfDouble distCoeffs;
+  private final int maxIterations;
+  private final double reprojectionError;
+  private final double confidence;
+  private final long timeBudgetNanos;
+  private final Random random = new Random(0);
+
+  private final double[] sampleObjectCoordinates = new double[12];
+  private final double[] sampleImageCoordinates = new double[8];
+  private final MatOfPoint3f sampleObjectPoints = new MatOfPoint3f();
+  private final MatOfPoint2f sampleImagePoints = new MatOfPoint2f();
+  private final MatOfPoint2f projectedPoints = new MatOfPoint2f();
+  private final MatOfPoint3f inlierObjectPoints = new MatOfPoint3f();
+  private final MatOfPoint2f inlierImagePoints = new MatOfPoint2f();
+  private final Mat hypothesisRvec = new Mat(3, 1, CvType.CV_64F);
+  private final Mat hypothesisTvec = new Mat(3, 1, CvType.CV_64F);
+  private float[] projectedCoordinates = new float[0];
+  private boolean[] inliers = new boolean[0];
+  private boolean[] bestInliers = new boolean[0];
+  private double[] inlierObjectCoordinates = new double[0];
+  private double[] inlierImageCoordinates = new double[0];
+  private int[] markerOrder = new int[0];
+
+  private final AtomicLong solves = new AtomicLong();
+  private final AtomicLong iterations = new AtomicLong();
+  private final AtomicLong[] exits = new AtomicLong[Exit.values().length];
+
+  private MarkerRansac(
+      Mat cameraMatrix,
+      MatOfDouble distCoeffs,
+      int maxIterations,
+      double reprojectionError,
+      double confidence,
+      double timeBudgetMillis) {
+    checkArgument(
+        confidence > 0 && confidence < 1,
+        String.format("RANSAC confidence must be between 0 and 1, but it is %s.", confidence));
+    this.cameraMatrix = cameraMatrix;
+    this.distCoeffs = distCoeffs;
+    this.maxIterations = maxIterations;
+    this.reprojectionError = reprojectionError;
+    this.confidence = confidence;
+    this.timeBudgetNanos = (long) (timeBudgetMillis * TimeUnit.MILLISECONDS.toNanos(1));
+    sampleObjectPoints.create(4, 1, CvType.CV_32FC3);
+    sampleImagePoints.create(4, 1, CvType.CV_32FC2);
+    for (int i = 0; i < exits.length; i++) {
+      exits[i] = new AtomicLong();
+    }
+  }
+
+  /**
+   * @param maxIterations maximum number of hypotheses per frame
+   * @param reprojectionError maximum distance in pixels of an inlier from its projection
+   * @param confidence probability of having found the best pose at which the search stops
+   * @param timeBudgetMillis time after which no more hypotheses are tried
+   */
+  public static MarkerRansac create(
+      Mat cameraMatrix,
+      MatOfDouble distCoeffs,
+      int maxIterations,
+      double reprojectionError,
+      double confidence,
+      double timeBudgetMillis) {
+    return new MarkerRansac(
+        cameraMatrix, distCoeffs, maxIterations, reprojectionError, confidence, timeBudgetMillis);
+  }
+
+  /**
+   * Solves the pose from the corners of several markers, four consecutive points per marker.
+   *
+   * @param objectCoordinates x, y, z of the marker corners
+   * @param imageCoordinates x, y of the detected corners
+   * @param objectPoints the marker corners as a Mat
+   * @param imagePoints the detected corners as a Mat
+   * @return the number of inliers of the pose written to rvec and tvec, zero if no pose has been
+   *     found
+   */
+  public int solve(
+      double[] objectCoordinates,
+      double[] imageCoordinates,
+      MatOfPoint3f objectPoints,
+      MatOfPoint2f imagePoints,
+      int markerCount,
+      Mat rvec,
+      Mat tvec) {
+    final long start = System.nanoTime();
+    final int pointCount = 4 * markerCount;
+    if (inliers.length < pointCount) {
+      projectedCoordinates = new float[2 * pointCount];
+      inliers = new boolean[pointCount];
+      bestInliers = new boolean[pointCount];
+      inlierObjectCoordinates = new double[3 * pointCount];
+      inlierImageCoordinates = new double[2 * pointCount];
+      markerOrder = new int[markerCount];
+    }
+    shuffleMarkers(markerCount);
+
+    int bestInlierCount = 0;
+    long neededIterations = Long.MAX_VALUE;
+    int iteration = 0;
+    Exit exit = null;
+    while (exit == null) {
+      final int marker = markerOrder[iteration++];
+      System.arraycopy(objectCoordinates, 12 * marker, sampleObjectCoordinates, 0, 12);
+      System.arraycopy(imageCoordinates, 8 * marker, sampleImageCoordinates, 0, 8);
+      sampleObjectPoints.put(0, 0, sampleObjectCoordinates);
+      sampleImagePoints.put(0, 0, sampleImageCoordinates);
+      Calib3d.solvePnP(
+          sampleObjectPoints,
+          sampleImagePoints,
+          cameraMatrix,
+          distCoeffs,
+          hypothesisRvec,
+          hypothesisTvec,
+          false,
+          Calib3d.ITERATIVE);
+
+      final int inlierCount = countInliers(objectPoints, imageCoordinates, pointCount);
+      if (inlierCount > bestInlierCount) {
+        bestInlierCount = inlierCount;
+        System.arraycopy(inliers, 0, bestInliers, 0, pointCount);
+        hypothesisRvec.copyTo(rvec);
+        hypothesisTvec.copyTo(tvec);
+        neededIterations = neededIterations(consistentMarkers(markerCount), markerCount);
+      }
+
+      if (bestInlierCount == pointCount) {
+        exit = Exit.ALL_INLIERS;
+      } else if (iteration >= neededIterations) {
+        exit = Exit.CONFIDENCE;
+      } else if (iteration == markerCount) {
+        exit = Exit.ALL_MARKERS;
+      } else if (iteration >= maxIterations) {
+        exit = Exit.MAX_ITERATIONS;
+      } else if (System.nanoTime() - start > timeBudgetNanos) {
+        exit = Exit.TIME_BUDGET;
+      }
+    }
+    solves.incrementAndGet();
+    iterations.addAndGet(iteration);
+    exits[exit.ordinal()].incrementAndGet();
+
+    if (bestInlierCount < 4) {
+      return 0;
+    }
+    if (bestInlierCount < pointCount) {
+      refine(objectCoordinates, imageCoordinates, pointCount, bestInlierCount, rvec, tvec);
+    } else {
+      Calib3d.solvePnP(
+          objectPoints, imagePoints, cameraMatrix, distCoeffs, rvec, tvec, true, Calib3d.ITERATIVE);
+    }
+    return bestInlierCount;
+  }
+
+  private void shuffleMarkers(int markerCount) {
+    for (int i = 0; i < markerCount; i++) {
+      markerOrder[i] = i;
+    }
+    for (int i = markerCount - 1; i > 0; i--) {
+      final int j = random.nextInt(i + 1);
+      final int swapped = markerOrder[i];
+      markerOrder[i] = markerOrder[j];
+      markerOrder[j] = swapped;
+    }
+  }
+
+  /** Marks the points close to their projection with the hypothesis pose. */
+  private int countInliers(MatOfPoint3f objectPoints, double[] imageCoordinates, int pointCount) {
+    Calib3d.projectPoints(
+        objectPoints, hypothesisRvec, hypothesisTvec, cameraMatrix, distCoeffs, projectedPoints);
+    projectedPoints.get(0, 0, projectedCoordinates);
+    int count = 0;
+    for (int i = 0; i < pointCount; i++) {
+      final double dx = projectedCoordinates[2 * i] - imageCoordinates[2 * i];
+      final double dy = projectedCoordinates[2 * i + 1] - imageCoordinates[2 * i + 1];
+      inliers[i] = dx * dx + dy * dy <= reprojectionError * reprojectionError;
+      if (inliers[i]) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /** @return number of markers whose corners are all inliers of the best pose */
+  private int consistentMarkers(int markerCount) {
+    int count = 0;
+    for (int marker = 0; marker < markerCount; marker++) {
+      if (bestInliers[4 * marker]
+          && bestInliers[4 * marker + 1]
+          && bestInliers[4 * marker + 2]
+          && bestInliers[4 * marker + 3]) {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  /**
+   * The number of single marker hypotheses after which a consistent marker has been drawn with
+   * the configured confidence.
+   */
+  private long neededIterations(int consistentMarkers, int markerCount) {
+    final double ratio = consistentMarkers / (double) markerCount;
+    if (ratio >= 1) {
+      return 1;
+    }
+    if (ratio <= 0) {
+      return Long.MAX_VALUE;
+    }
+    return (long) Math.ceil(Math.log(1 - confidence) / Math.log(1 - ratio));
+  }
+
+  /** Solves the pose iteratively from the inliers of the best hypothesis. */
+  private void refine(
+      double[] objectCoordinates,
+      double[] imageCoordinates,
+      int pointCount,
+      int inlierCount,
+      Mat rvec,
+      Mat tvec) {
+    for (int i = 0, j = 0; i < pointCount; i++) {
+      if (bestInliers[i]) {
+        System.arraycopy(objectCoordinates, 3 * i, inlierObjectCoordinates, 3 * j, 3);
+        System.arraycopy(imageCoordinates, 2 * i, inlierImageCoordinates, 2 * j, 2);
+        j++;
+      }
+    }
+    inlierObjectPoints.create(inlierCount, 1, CvType.CV_32FC3);
+    inlierObjectPoints.put(0, 0, inlierObjectCoordinates);
+    inlierImagePoints.create(inlierCount, 1, CvType.CV_32FC2);
+    inlierImagePoints.put(0, 0, inlierImageCoordinates);
+    Calib3d.solvePnP(
+        inlierObjectPoints,
+        inlierImagePoints,
+        cameraMatrix,
+        distCoeffs,
+        rvec,
+        tvec,
+        true,
+        Calib3d.ITERATIVE);
+  }
+
+  public long solves() {
+    return solves.get();
+  }
+
+  /** @return mean number of hypotheses tried per frame */
+  public double meanIterations() {
+    final long count = solves.get();
+    return count == 0 ? 0 : iterations.get() / (double) count;
+  }
+
+  /** @return number of frames in which the search stopped for the given reason */
+  public long exits(Exit exit) {
+    return exits[exit.ordinal()].get();
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder builder =
+        new StringBuilder(
+            String.format("%d solves, %.1f hypotheses on average, exits:", solves(), meanIterations()));
+    for (final Exit exit : Exit.values()) {
+      builder.append(' ').append(exit).append(' ').append(exits(exit));
+    }
+    return builder.toString();
+  }
+}
@@ -1,82 +1,53 @@
 package arlocros;
 
 import jp.nyatla.nyartoolkit.core.NyARException;
-import jp.nyatla.nyartoolkit.core.raster.rgb.INyARRgbRaster;
 import jp.nyatla.nyartoolkit.core.raster.rgb.NyARRgbRaster;
 import jp.nyatla.nyartoolkit.core.types.NyARBufferType;
-import org.apache.commons.lang.exception.ExceptionUtils;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 
 /**
- * Helper class to convert and OpenCV Mat containing a camera image to
- * NyARRGBRaster
+ * NyARRgbRaster over the pixels of an OpenCV Mat containing an rgb8 camera
+ * image. The raster reads the bytes in the order they arrive in
+ * (BYTE1D_R8G8B8_24), so no channel swap and no BufferedImage are needed. A
+ * helper is created once for a given image size and updated with every frame.
+ * Luminance images are handed to NyARToolkit by a {@link LuminanceSensor}.
  *
  */
 public final class NyARImageHelper extends NyARRgbRaster {
 
-    private static final Logger logger = LoggerFactory.getLogger(NyARImageHelper.class);
+    private final byte[] pixels;
 
     /**
-     * @param image
-     * @return
+     * @param i_width
+     * @param i_height
+     * @throws NyARException
      */
-    public static INyARRgbRaster createFromMat(Mat image) {
-        final BufferedImage bimg;
-        if (image != null) {
-            final int cols = image.cols();
-            final int rows = image.rows();
-            final int elemSize = (int) image.elemSize();
-            final byte[] data = new byte[cols * rows * elemSize];
-            final int type;
-            image.get(0, 0, data);
-            // we only support RGB
-            type = BufferedImage.TYPE_3BYTE_BGR;
-            // bgr to rgb
-            byte b;
-            for (int i = 0; i < data.length; i += 3) {
-                b = data[i];
-                data[i] = data[i + 2];
-                data[i + 2] = b;
-            }
-
-            bimg = new BufferedImage(cols, rows, type);
-
-            bimg.getRaster().setDataElements(0, 0, cols, rows, data);
-        } else {
-            bimg = null;
-        }
-
-        NyARImageHelper ra = null;
-
-        final int raster_type = NyARBufferType.BYTE1D_B8G8R8_24;
-        try {
-            ra = new NyARImageHelper(bimg.getWidth(), bimg.getHeight(), raster_type, false);
-            ra._buf = ((DataBufferByte) (bimg.getRaster().getDataBuffer())).getData();
-            ra._rgb_pixel_driver.switchRaster(ra);
-        } catch (NyARException e) {
-            logger.info("Exception in nyarmarker.", e);
-        }
-
-        return ra;
+    private NyARImageHelper(int i_width, int i_height) throws NyARException {
+        super(i_width, i_height, NyARBufferType.BYTE1D_R8G8B8_24, false);
+        pixels = new byte[i_width * i_height * 3];
+        _buf = pixels;
+        _rgb_pixel_driver.switchRaster(this);
+    }
 
+    public static NyARImageHelper create(int width, int height) throws NyARException {
+        return new NyARImageHelper(width, height);
     }
 
     /**
-     * @param i_width
-     * @param i_height
-     * @param i_raster_type
-     * @param i_is_alloc
-     * @throws NyARException
+     * Copies the pixels of the image into the raster.
+     *
+     * @param image rgb image of the raster size
+     * @return this raster
      */
-    private NyARImageHelper(int i_width, int i_height, int i_raster_type, boolean i_is_alloc) throws NyARException {
-
-        super(i_width, i_height, i_raster_type, i_is_alloc);
+    public NyARImageHelper update(Mat image) {
+        // the message is only built when the check fails, this runs for every frame
+        if (image.type() != CvType.CV_8UC3 || image.cols() != getWidth() || image.rows() != getHeight()) {
+            throw new IllegalArgumentException(
+                    "Expected a " + getWidth() + "x" + getHeight() + " rgb image, but got " + image);
+        }
+        image.get(0, 0, pixels);
+        return this;
     }
 
 }
-
@@ -1,7 +1,14 @@
 package arlocros;
 
 import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
 import org.ros.node.parameter.ParameterTree;
+import rosjava_tf_example.Transformer;
+
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /** @author Hoang Tung Dinh */
 @AutoValue
@@ -13,12 +20,6 @@ public abstract class Parameter {
 
   public abstract String markerFrameName();
 
-  public abstract String cameraFrameName();
-
-  public abstract String cameraImageTopic();
-
-  public abstract String cameraInfoTopic();
-
   public abstract String markerConfigFile();
 
   public abstract boolean badPoseReject();
@@ -35,14 +36,72 @@ public abstract class Parameter {
 
   public abstract boolean invertBlackWhiteColor();
 
+  public abstract boolean grayscaleDetection();
+
+  public abstract boolean roiTracking();
+
+  public abstract int roiPadding();
+
+  public abstract int roiFullScanInterval();
+
+  public abstract int pyramidDownscaleFactor();
+
+  public abstract ComputePose.DetectionMode detectionMode();
+
+  public abstract boolean visibilityPrefilter();
+
+  public abstract int visibilityMargin();
+
+  public abstract int visibilityMaxPoseAge();
+
+  public abstract boolean subpixelRefinement();
+
+  public abstract int subpixelWindow();
+
+  public abstract boolean poseTracking();
+
+  public abstract double trackingMaxReprojectionError();
+
+  public abstract double trackingMinInlierRatio();
+
+  /** The age in milliseconds after which the last pose is too old to start the tracking from. */
+  public abstract int trackingMaxPoseAge();
+
+  public abstract ComputePose.PoseSolver poseSolver();
+
+  public abstract int ransacIterations();
+
+  public abstract double ransacReprojectionError();
+
+  public abstract int ransacMinInliers();
+
+  public abstract double ransacConfidence();
+
+  public abstract double ransacTimeBudget();
+
+  public abstract Binarizer.Mode binarization();
+
+  public abstract int binarizationThreshold();
+
+  public abstract int adaptiveBlockRadius();
+
+  public abstract int adaptiveOffset();
+
+  /** The number of transforms kept per tf frame for lookups at the capture time of an image. */
+  public abstract int tfHistorySize();
+
+  /**
+   * The cameras used for localization. Without a /cameras parameter this is the single camera
+   * given by /camera_image_topic, /camera_info_topic and /camera_frame_name, which are only read
+   * in that case.
+   */
+  public abstract ImmutableList<CameraConfig> cameras();
+
   public static Parameter createFrom(ParameterTree parameterTree) {
     return builder()
         .patternDirectory(parameterTree.getString("/pattern_dir"))
         .markerConfigFile(parameterTree.getString("/marker_config_file"))
         .markerFrameName(parameterTree.getString("/marker_frame_name"))
-        .cameraFrameName(parameterTree.getString("/camera_frame_name"))
-        .cameraImageTopic(parameterTree.getString("/camera_image_topic"))
-        .cameraInfoTopic(parameterTree.getString("/camera_info_topic"))
         .badPoseReject(parameterTree.getBoolean("/bad_pose_reject"))
         .fusedPoseTopicName(parameterTree.getString("/fused_pose_topic_name"))
         .markerPoseTopicName(parameterTree.getString("/marker_pose_topic_name"))
@@ -50,9 +109,85 @@ public abstract class Parameter {
         .useThreshold(parameterTree.getBoolean("/use_threshold"))
         .blackWhiteContrastLevel(parameterTree.getDouble("/black_white_contrast_level"))
         .invertBlackWhiteColor(parameterTree.getBoolean("/invert_black_white_color"))
+        .grayscaleDetection(parameterTree.getBoolean("/grayscale_detection", false))
+        .roiTracking(parameterTree.getBoolean("/roi_tracking", false))
+        .roiPadding(parameterTree.getInteger("/roi_padding", 64))
+        .roiFullScanInterval(parameterTree.getInteger("/roi_full_scan_interval", 15))
+        .pyramidDownscaleFactor(parameterTree.getInteger("/pyramid_downscale_factor", 1))
+        .detectionMode(
+            ComputePose.DetectionMode.valueOf(
+                parameterTree.getString("/detection_mode", "template").toUpperCase()))
+        .visibilityPrefilter(parameterTree.getBoolean("/visibility_prefilter", false))
+        .visibilityMargin(parameterTree.getInteger("/visibility_margin", 100))
+        .visibilityMaxPoseAge(parameterTree.getInteger("/visibility_max_pose_age", 500))
+        .subpixelRefinement(parameterTree.getBoolean("/subpixel_refinement", false))
+        .subpixelWindow(parameterTree.getInteger("/subpixel_window", 4))
+        .poseTracking(parameterTree.getBoolean("/pose_tracking", false))
+        .trackingMaxReprojectionError(
+            parameterTree.getDouble("/tracking_max_reprojection_error", 2.0))
+        .trackingMinInlierRatio(parameterTree.getDouble("/tracking_min_inlier_ratio", 0.9))
+        .trackingMaxPoseAge(parameterTree.getInteger("/tracking_max_pose_age", 100))
+        .poseSolver(
+            ComputePose.PoseSolver.valueOf(
+                parameterTree.getString("/pose_solver", "ransac").toUpperCase()))
+        .ransacIterations(parameterTree.getInteger("/ransac_iterations", 300))
+        .ransacReprojectionError(parameterTree.getDouble("/ransac_reprojection_error", 5.0))
+        .ransacMinInliers(parameterTree.getInteger("/ransac_min_inliers", 16))
+        .ransacConfidence(parameterTree.getDouble("/ransac_confidence", 0.99))
+        .ransacTimeBudget(parameterTree.getDouble("/ransac_time_budget", 5.0))
+        .binarization(
+            Binarizer.Mode.valueOf(parameterTree.getString("/binarization", "none").toUpperCase()))
+        .binarizationThreshold(parameterTree.getInteger("/binarization_threshold", 128))
+        .adaptiveBlockRadius(parameterTree.getInteger("/adaptive_block_radius", 15))
+        .adaptiveOffset(parameterTree.getInteger("/adaptive_offset", 7))
+        .tfHistorySize(
+            parameterTree.getInteger("/tf_history_size", Transformer.DEFAULT_HISTORY_SIZE))
+        .cameras(readCameras(parameterTree))
         .build();
   }
 
+  /**
+   * Reads the cameras from the /cameras list. Each entry is a dictionary with the keys
+   * image_topic, info_topic and frame_name, and optionally name and marker_frame_name.
+   */
+  private static ImmutableList<CameraConfig> readCameras(ParameterTree parameterTree) {
+    final String markerFrameName = parameterTree.getString("/marker_frame_name");
+    if (!parameterTree.has("/cameras")) {
+      return ImmutableList.of(
+          CameraConfig.create(
+              "camera",
+              parameterTree.getString("/camera_image_topic"),
+              parameterTree.getString("/camera_info_topic"),
+              parameterTree.getString("/camera_frame_name"),
+              markerFrameName));
+    }
+
+    final List<?> entries = parameterTree.getList("/cameras");
+    checkArgument(!entries.isEmpty(), "The /cameras list must not be empty.");
+    final ImmutableList.Builder<CameraConfig> cameras = ImmutableList.builder();
+    for (int i = 0; i < entries.size(); i++) {
+      final Map<?, ?> entry = (Map<?, ?>) entries.get(i);
+      final String name = entry.containsKey("name") ? (String) entry.get("name") : "camera" + i;
+      cameras.add(
+          CameraConfig.create(
+              name,
+              requiredString(entry, "image_topic", name),
+              requiredString(entry, "info_topic", name),
+              requiredString(entry, "frame_name", name),
+              entry.containsKey("marker_frame_name")
+                  ? (String) entry.get("marker_frame_name")
+                  : markerFrameName + "_" + name));
+    }
+    return cameras.build();
+  }
+
+  private static String requiredString(Map<?, ?> entry, String key, String cameraName) {
+    checkArgument(
+        entry.get(key) instanceof String,
+        String.format("Camera %s has no %s in the /cameras parameter.", cameraName, key));
+    return (String) entry.get(key);
+  }
+
   public static Builder builder() {
     return new AutoValue_Parameter.Builder();
   }
@@ -63,12 +198,6 @@ public abstract class Parameter {
 
     public abstract Builder markerFrameName(String value);
 
-    public abstract Builder cameraFrameName(String value);
-
-    public abstract Builder cameraImageTopic(String value);
-
-    public abstract Builder cameraInfoTopic(String value);
-
     public abstract Builder markerConfigFile(String value);
 
     public abstract Builder badPoseReject(boolean value);
@@ -85,6 +214,60 @@ public abstract class Parameter {
 
     public abstract Builder invertBlackWhiteColor(boolean value);
 
+    public abstract Builder grayscaleDetection(boolean value);
+
+    public abstract Builder roiTracking(boolean value);
+
+    public abstract Builder roiPadding(int value);
+
+    public abstract Builder roiFullScanInterval(int value);
+
+    public abstract Builder pyramidDownscaleFactor(int value);
+
+    public abstract Builder detectionMode(ComputePose.DetectionMode value);
+
+    public abstract Builder visibilityPrefilter(boolean value);
+
+    public abstract Builder visibilityMargin(int value);
+
+    public abstract Builder visibilityMaxPoseAge(int value);
+
+    public abstract Builder subpixelRefinement(boolean value);
+
+    public abstract Builder subpixelWindow(int value);
+
+    public abstract Builder poseTracking(boolean value);
+
+    public abstract Builder trackingMaxReprojectionError(double value);
+
+    public abstract Builder trackingMinInlierRatio(double value);
+
+    public abstract Builder trackingMaxPoseAge(int value);
+
+    public abstract Builder poseSolver(ComputePose.PoseSolver value);
+
+    public abstract Builder ransacIterations(int value);
+
+    public abstract Builder ransacReprojectionError(double value);
+
+    public abstract Builder ransacMinInliers(int value);
+
+    public abstract Builder ransacConfidence(double value);
+
+    public abstract Builder ransacTimeBudget(double value);
+
+    public abstract Builder binarization(Binarizer.Mode value);
+
+    public abstract Builder binarizationThreshold(int value);
+
+    public abstract Builder adaptiveBlockRadius(int value);
+
+    public abstract Builder adaptiveOffset(int value);
+
+    public abstract Builder tfHistorySize(int value);
+
+    public abstract Builder cameras(ImmutableList<CameraConfig> value);
+
     public abstract Parameter build();
   }
 }
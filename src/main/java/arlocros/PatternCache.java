@@ -0,0 +1,214 @@
+package arlocros;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import jp.nyatla.nyartoolkit.core.NyARCode;
+import jp.nyatla.nyartoolkit.core.NyARException;
+import jp.nyatla.nyartoolkit.core.raster.rgb.NyARRgbRaster;
+import jp.nyatla.nyartoolkit.core.types.NyARBufferType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A binary cache of compiled marker patterns. Parsing the text of an ARToolKit .patt file is slow
+ * compared to reading its pixels from a binary file, which matters for large marker libraries.
+ *
+ * <p>Each pattern is stored under the SHA-1 hash of its .patt file content, so a changed pattern
+ * file simply misses the cache and is compiled again. The cache file is memory-mapped for reading
+ * and rewritten with the current patterns whenever it missed or held patterns that are no longer
+ * used.
+ *
+ * <p>File layout, big endian: magic, version, pattern width, pattern height, entry count, and for
+ * each entry the 20 byte hash followed by the X8R8G8B8 pixels of the four directions.
+ */
+final class PatternCache {
+
+  private static final Logger logger = LoggerFactory.getLogger(PatternCache.class);
+
+  private static final int MAGIC = 0x41525043; // "ARPC"
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 5 * 4;
+  private static final int HASH_BYTES = 20;
+  private static final int DIRECTIONS = 4;
+  // planes of a .patt block, stored in B, G, R order
+  private static final int PLANES = 3;
+
+  private final File file;
+  private final int width;
+  private final int height;
+  private final int entryBytes;
+  private final Map<HashCode, Integer> cachedOffsets = new HashMap<>();
+  private final Map<HashCode, int[]> usedEntries = new LinkedHashMap<>();
+  private MappedByteBuffer mapped;
+  private boolean dirty;
+
+  private PatternCache(File file, int width, int height) {
+    this.file = file;
+    this.width = width;
+    this.height = height;
+    this.entryBytes = HASH_BYTES + DIRECTIONS * width * height * 4;
+  }
+
+  /**
+   * Opens the cache file. A missing, unreadable or incompatible cache file results in an empty
+   * cache, which is written when the cache is saved.
+   */
+  static PatternCache open(File file, int width, int height) {
+    final PatternCache cache = new PatternCache(file, width, height);
+    if (file.isFile()) {
+      try {
+        cache.map();
+      } catch (IOException | IllegalArgumentException e) {
+        logger.info("Ignoring the marker pattern cache {}: {}", file, e.getMessage());
+        cache.cachedOffsets.clear();
+        cache.mapped = null;
+      }
+    }
+    return cache;
+  }
+
+  private void map() throws IOException {
+    final RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      final FileChannel channel = input.getChannel();
+      mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } finally {
+      input.close();
+    }
+    checkArgument(mapped.limit() >= HEADER_BYTES, "file too short");
+    checkArgument(mapped.getInt(0) == MAGIC && mapped.getInt(4) == VERSION, "unknown format");
+    checkArgument(mapped.getInt(8) == width && mapped.getInt(12) == height, "other pattern size");
+    final int count = mapped.getInt(16);
+    checkArgument(mapped.limit() == HEADER_BYTES + (long) count * entryBytes, "truncated file");
+    final byte[] hash = new byte[HASH_BYTES];
+    for (int i = 0; i < count; i++) {
+      final int offset = HEADER_BYTES + i * entryBytes;
+      ((ByteBuffer) mapped.duplicate().position(offset)).get(hash);
+      cachedOffsets.put(HashCode.fromBytes(hash), offset + HASH_BYTES);
+    }
+  }
+
+  /**
+   * Returns the X8R8G8B8 pixels of the four directions of a pattern file, from the cache if
+   * possible.
+   *
+   * @param content the content of the .patt file
+   */
+  int[] pixels(byte[] content) throws NyARException {
+    final HashCode hash = Hashing.sha1().hashBytes(content);
+    int[] pixels = usedEntries.get(hash);
+    if (pixels == null) {
+      final Integer offset = cachedOffsets.get(hash);
+      if (offset != null) {
+        pixels = new int[DIRECTIONS * width * height];
+        ((ByteBuffer) mapped.duplicate().position(offset)).asIntBuffer().get(pixels);
+      } else {
+        pixels = parse(content);
+        dirty = true;
+      }
+      usedEntries.put(hash, pixels);
+    }
+    return pixels;
+  }
+
+  /** Rewrites the cache file if it does not hold exactly the patterns loaded. */
+  void saveIfChanged() {
+    if (!dirty && usedEntries.size() == cachedOffsets.size()) {
+      return;
+    }
+    final File temporary = new File(file.getPath() + ".tmp");
+    try {
+      final DataOutputStream output =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+      try {
+        output.writeInt(MAGIC);
+        output.writeInt(VERSION);
+        output.writeInt(width);
+        output.writeInt(height);
+        output.writeInt(usedEntries.size());
+        for (final Map.Entry<HashCode, int[]> entry : usedEntries.entrySet()) {
+          output.write(entry.getKey().asBytes());
+          for (final int pixel : entry.getValue()) {
+            output.writeInt(pixel);
+          }
+        }
+      } finally {
+        output.close();
+      }
+      // replace the old cache in one step, readers never see a partial file
+      if (!temporary.renameTo(file)) {
+        throw new IOException("Cannot rename " + temporary + " to " + file);
+      }
+      logger.info("Wrote {} marker patterns to the cache {}", usedEntries.size(), file);
+    } catch (IOException e) {
+      // e.g. a read-only pattern directory, the patterns are parsed again on the next start
+      logger.info("Cannot write the marker pattern cache " + file, e);
+      temporary.delete();
+    }
+  }
+
+  /**
+   * Parses the text of a .patt file the way NyARToolkit does: four direction blocks of three
+   * planes each, packed into X8R8G8B8 pixels.
+   */
+  private int[] parse(byte[] content) throws NyARException {
+    final int pixelsPerDirection = width * height;
+    final int[] pixels = new int[DIRECTIONS * pixelsPerDirection];
+    int position = 0;
+    for (int direction = 0; direction < DIRECTIONS; direction++) {
+      final int base = direction * pixelsPerDirection;
+      for (int plane = 0; plane < PLANES; plane++) {
+        for (int i = 0; i < pixelsPerDirection; i++) {
+          while (position < content.length && !isDigit(content[position])) {
+            position++;
+          }
+          if (position == content.length) {
+            throw new NyARException("Marker pattern file is too short.");
+          }
+          int value = 0;
+          while (position < content.length && isDigit(content[position])) {
+            value = value * 10 + content[position] - '0';
+            position++;
+          }
+          // the planes are stored blue first
+          pixels[base + i] |= (value & 0xff) << (8 * plane);
+        }
+      }
+    }
+    return pixels;
+  }
+
+  private static boolean isDigit(byte character) {
+    return character >= '0' && character <= '9';
+  }
+
+  /** Creates the NyARToolkit code of the pixels returned by {@link #pixels(byte[])}. */
+  NyARCode toCode(int[] pixels) throws NyARException {
+    final int pixelsPerDirection = width * height;
+    final NyARCode code = new NyARCode(width, height);
+    final NyARRgbRaster raster =
+        new NyARRgbRaster(width, height, NyARBufferType.INT1D_X8R8G8B8_32, true);
+    final int[] buffer = (int[]) raster.getBuffer();
+    for (int direction = 0; direction < DIRECTIONS; direction++) {
+      System.arraycopy(pixels, direction * pixelsPerDirection, buffer, 0, pixelsPerDirection);
+      code.getColorData(direction).setRaster(raster);
+      code.getBlackWhiteData(direction).setRaster(raster);
+    }
+    return code;
+  }
+}
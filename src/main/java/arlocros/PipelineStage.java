@@ -0,0 +1,106 @@
+package arlocros;
+
+import org.ros.concurrent.CancellableLoop;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of the frame processing pipeline, running on its own thread. The stage takes frames
+ * from its input queue, processes them and puts them into its output queue. Frames that should not
+ * be processed any further, e.g. because no marker was found, are put back into the queue of free
+ * frames instead. The queues are bounded, the number of frames in the pipeline is limited by the
+ * number of frames allocated.
+ *
+ * <p>The stage records the time spent processing the frames, the waiting for a frame is not
+ * included.
+ */
+abstract class PipelineStage extends CancellableLoop {
+
+  private static final Logger logger = LoggerFactory.getLogger(PipelineStage.class);
+
+  private final String name;
+  private final BlockingQueue<Frame> input;
+  private final BlockingQueue<Frame> output;
+  private final BlockingQueue<Frame> freeFrames;
+  private final AtomicLong processed = new AtomicLong();
+  private final AtomicLong discarded = new AtomicLong();
+  private final AtomicLong totalLatencyNanos = new AtomicLong();
+  private volatile long maxLatencyNanos;
+
+  PipelineStage(String name, BlockingQueue<Frame> input, BlockingQueue<Frame> output,
+      BlockingQueue<Frame> freeFrames) {
+    this.name = name;
+    this.input = input;
+    this.output = output;
+    this.freeFrames = freeFrames;
+  }
+
+  /**
+   * Processes a frame.
+   *
+   * @return true if the frame should be handed to the next stage, false if it should be discarded
+   */
+  protected abstract boolean process(Frame frame) throws Exception;
+
+  /**
+   * Called with a frame taken from the input queue before the processing time is measured. The
+   * first stage of the pipeline waits for new data here.
+   */
+  protected void await(Frame frame) throws InterruptedException {}
+
+  @Override
+  protected final void loop() throws InterruptedException {
+    final Frame frame = input.take();
+    try {
+      await(frame);
+    } catch (InterruptedException e) {
+      // keep the number of frames in the pipeline when the stage is restarted
+      freeFrames.put(frame);
+      throw e;
+    }
+    final long start = System.nanoTime();
+    boolean forward = false;
+    try {
+      forward = process(frame);
+    } catch (InterruptedException e) {
+      freeFrames.put(frame);
+      throw e;
+    } catch (Exception e) {
+      logger.info("An exception occurs in the " + name + " stage.", e);
+    }
+    final long latency = System.nanoTime() - start;
+    totalLatencyNanos.addAndGet(latency);
+    if (latency > maxLatencyNanos) {
+      maxLatencyNanos = latency;
+    }
+    processed.incrementAndGet();
+    if (forward) {
+      output.put(frame);
+    } else {
+      discarded.incrementAndGet();
+      freeFrames.put(frame);
+    }
+  }
+
+  /** @return number of frames waiting in the input queue of this stage */
+  int queueDepth() {
+    return input.size();
+  }
+
+  /** @return the mean processing time per frame in milliseconds */
+  double meanLatencyMillis() {
+    final long count = processed.get();
+    return count == 0 ? 0 : totalLatencyNanos.get() / (double) count / TimeUnit.MILLISECONDS.toNanos(1);
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: %d frames, %d discarded, latency mean %.1f ms max %.1f ms, queue %d",
+        name, processed.get(), discarded.get(), meanLatencyMillis(),
+        maxLatencyNanos / (double) TimeUnit.MILLISECONDS.toNanos(1), queueDepth());
+  }
+}
@@ -0,0 +1,636 @@
+package arlocros;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Solves the camera pose from the corners of markers that all lie in one plane, in plain Java on
+ * arrays of coordinates. The corners are undistorted, a homography from the plane to the
+ * normalized image is estimated and decomposed into an initial pose, which is refined by
+ * Gauss-Newton on the reprojection error. As long as a marker does not fit the pose, the marker
+ * fitting worst is dropped and the pose is solved again without it.
+ *
+ * <p>No objects are allocated per frame and no native code is called except for writing the
+ * result. The buffers are kept between frames, a solver is not thread-safe.
+ */
+public final class PlanarPoseSolver {
+
+  // largest distance of a corner from the plane relative to the board size
+  private static final double PLANARITY_TOLERANCE = 1e-6;
+  private static final int MAX_REFINEMENT_ITERATIONS = 10;
+  private static final double CONVERGED_STEP = 1e-10;
+  private static final int UNDISTORTION_ITERATIONS = 5;
+  // offset of the solution of the normal equations
+  private static final int SOLUTION = 8 * 9;
+
+  private final double fx;
+  private final double fy;
+  private final double cx;
+  private final double cy;
+  // k1, k2, p1, p2, k3 of the plumb bob model
+  private final double[] distortion = new double[5];
+  private final double inlierThreshold;
+  // plane origin and axes in map coordinates, the third axis is the normal
+  private final double[] origin = new double[3];
+  private final double[] axes = new double[9];
+
+  private double[] planeCoordinates = new double[0];
+  private double[] normalizedCoordinates = new double[0];
+  private boolean[] activeMarkers = new boolean[0];
+  // augmented normal equations followed by their solution
+  private final double[] normal = new double[SOLUTION + 8];
+  private final double[] homography = new double[9];
+  private final double[] rotation = new double[9];
+  private final double[] translation = new double[3];
+  private final double[] step = new double[6];
+  private final double[] increment = new double[9];
+  private final double[] product = new double[9];
+  private final double[] rvecValues = new double[3];
+  private final double[] tvecValues = new double[3];
+
+  private PlanarPoseSolver(
+      double[] boardCorners, Mat cameraMatrix, MatOfDouble distCoeffs, double inlierThreshold) {
+    checkArgument(isPlanar(boardCorners, origin, axes), "The markers do not lie in one plane.");
+    this.fx = cameraMatrix.get(0, 0)[0];
+    this.fy = cameraMatrix.get(1, 1)[0];
+    this.cx = cameraMatrix.get(0, 2)[0];
+    this.cy = cameraMatrix.get(1, 2)[0];
+    final double[] coefficients = distCoeffs.toArray();
+    System.arraycopy(
+        coefficients, 0, distortion, 0, Math.min(coefficients.length, distortion.length));
+    this.inlierThreshold = inlierThreshold;
+  }
+
+  /**
+   * @param boardCorners x, y, z of the corners of all markers of the map, which must lie in one
+   *     plane
+   * @param inlierThreshold mean reprojection error in pixels above which a marker is dropped
+   */
+  public static PlanarPoseSolver create(
+      double[] boardCorners, Mat cameraMatrix, MatOfDouble distCoeffs, double inlierThreshold) {
+    return new PlanarPoseSolver(boardCorners, cameraMatrix, distCoeffs, inlierThreshold);
+  }
+
+  /** @return whether the corners, x, y, z each, lie in one plane */
+  public static boolean isPlanar(double[] corners) {
+    return isPlanar(corners, new double[3], new double[9]);
+  }
+
+  /**
+   * Finds the plane through the first corner, the corner farthest from it and the corner
+   * farthest from the line through both, and checks the other corners against it.
+   */
+  private static boolean isPlanar(double[] corners, double[] origin, double[] axes) {
+    final int count = corners.length / 3;
+    if (count < 3) {
+      return false;
+    }
+    System.arraycopy(corners, 0, origin, 0, 3);
+    int farthest = 0;
+    double farthestDistance = 0;
+    for (int i = 1; i < count; i++) {
+      final double distance =
+          norm(
+              corners[3 * i] - origin[0],
+              corners[3 * i + 1] - origin[1],
+              corners[3 * i + 2] - origin[2]);
+      if (distance > farthestDistance) {
+        farthest = i;
+        farthestDistance = distance;
+      }
+    }
+    if (farthestDistance == 0) {
+      return false;
+    }
+    axes[0] = (corners[3 * farthest] - origin[0]) / farthestDistance;
+    axes[1] = (corners[3 * farthest + 1] - origin[1]) / farthestDistance;
+    axes[2] = (corners[3 * farthest + 2] - origin[2]) / farthestDistance;
+    double largestArea = 0;
+    for (int i = 1; i < count; i++) {
+      final double dx = corners[3 * i] - origin[0];
+      final double dy = corners[3 * i + 1] - origin[1];
+      final double dz = corners[3 * i + 2] - origin[2];
+      // normal of the plane through the origin, the first axis and this corner
+      final double nx = axes[1] * dz - axes[2] * dy;
+      final double ny = axes[2] * dx - axes[0] * dz;
+      final double nz = axes[0] * dy - axes[1] * dx;
+      final double area = norm(nx, ny, nz);
+      if (area > largestArea) {
+        largestArea = area;
+        axes[6] = nx / area;
+        axes[7] = ny / area;
+        axes[8] = nz / area;
+      }
+    }
+    if (largestArea <= PLANARITY_TOLERANCE * farthestDistance) {
+      return false;
+    }
+    // second axis = normal x first axis
+    axes[3] = axes[7] * axes[2] - axes[8] * axes[1];
+    axes[4] = axes[8] * axes[0] - axes[6] * axes[2];
+    axes[5] = axes[6] * axes[1] - axes[7] * axes[0];
+    for (int i = 0; i < count; i++) {
+      final double distance =
+          (corners[3 * i] - origin[0]) * axes[6]
+              + (corners[3 * i + 1] - origin[1]) * axes[7]
+              + (corners[3 * i + 2] - origin[2]) * axes[8];
+      if (Math.abs(distance) > PLANARITY_TOLERANCE * farthestDistance) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Solves the pose from the corners of several markers, four consecutive points per marker.
+   *
+   * @param objectCoordinates x, y, z of the marker corners in the map
+   * @param imageCoordinates x, y of the detected corners in pixels
+   * @return the number of corners of the markers kept, zero if no pose has been found
+   */
+  public int solve(
+      double[] objectCoordinates, double[] imageCoordinates, int markerCount, Mat rvec, Mat tvec) {
+    final int pointCount = 4 * markerCount;
+    if (pointCount == 0) {
+      return 0;
+    }
+    if (activeMarkers.length < markerCount) {
+      planeCoordinates = new double[2 * pointCount];
+      normalizedCoordinates = new double[2 * pointCount];
+      activeMarkers = new boolean[markerCount];
+    }
+    for (int i = 0; i < pointCount; i++) {
+      final double dx = objectCoordinates[3 * i] - origin[0];
+      final double dy = objectCoordinates[3 * i + 1] - origin[1];
+      final double dz = objectCoordinates[3 * i + 2] - origin[2];
+      planeCoordinates[2 * i] = dx * axes[0] + dy * axes[1] + dz * axes[2];
+      planeCoordinates[2 * i + 1] = dx * axes[3] + dy * axes[4] + dz * axes[5];
+      undistort(imageCoordinates[2 * i], imageCoordinates[2 * i + 1], i);
+    }
+    for (int marker = 0; marker < markerCount; marker++) {
+      activeMarkers[marker] = true;
+    }
+
+    if (!solveActive(markerCount)) {
+      return 0;
+    }
+    // drop the marker fitting worst, e.g. a wrong detection, and solve again
+    // until all markers fit
+    int kept = markerCount;
+    while (true) {
+      int worst = -1;
+      double worstError = inlierThreshold;
+      for (int marker = 0; marker < markerCount; marker++) {
+        if (activeMarkers[marker]) {
+          final double error = markerError(marker);
+          if (error > worstError) {
+            worst = marker;
+            worstError = error;
+          }
+        }
+      }
+      if (worst < 0) {
+        break;
+      }
+      activeMarkers[worst] = false;
+      kept--;
+      if (kept == 0 || !solveActive(markerCount)) {
+        return 0;
+      }
+    }
+
+    toMapPose();
+    rvec.put(0, 0, rvecValues);
+    tvec.put(0, 0, tvecValues);
+    return 4 * kept;
+  }
+
+  /** Estimates and refines the pose of the plane from the corners of the active markers. */
+  private boolean solveActive(int markerCount) {
+    if (!estimateHomography(markerCount) || !decomposeHomography()) {
+      return false;
+    }
+    for (int iteration = 0; iteration < MAX_REFINEMENT_ITERATIONS; iteration++) {
+      if (!refinePose(markerCount)) {
+        return false;
+      }
+      if (Math.abs(step[0]) + Math.abs(step[1]) + Math.abs(step[2]) + Math.abs(step[3])
+              + Math.abs(step[4]) + Math.abs(step[5])
+          < CONVERGED_STEP) {
+        break;
+      }
+    }
+    return translation[2] > 0;
+  }
+
+  /** Removes the camera intrinsics and the lens distortion, like OpenCV's undistortPoints. */
+  private void undistort(double u, double v, int point) {
+    final double x0 = (u - cx) / fx;
+    final double y0 = (v - cy) / fy;
+    double x = x0;
+    double y = y0;
+    for (int i = 0; i < UNDISTORTION_ITERATIONS; i++) {
+      final double r2 = x * x + y * y;
+      final double radial =
+          1 / (1 + ((distortion[4] * r2 + distortion[1]) * r2 + distortion[0]) * r2);
+      final double deltaX = 2 * distortion[2] * x * y + distortion[3] * (r2 + 2 * x * x);
+      final double deltaY = distortion[2] * (r2 + 2 * y * y) + 2 * distortion[3] * x * y;
+      x = (x0 - deltaX) * radial;
+      y = (y0 - deltaY) * radial;
+    }
+    normalizedCoordinates[2 * point] = x;
+    normalizedCoordinates[2 * point + 1] = y;
+  }
+
+  /**
+   * Estimates the homography from plane to normalized image coordinates with the normalized DLT,
+   * the last element being one.
+   */
+  private boolean estimateHomography(int markerCount) {
+    // shift and scale both point sets to the origin and unit mean distance
+    double planeX = 0;
+    double planeY = 0;
+    double imageX = 0;
+    double imageY = 0;
+    int count = 0;
+    for (int i = 0; i < 4 * markerCount; i++) {
+      if (activeMarkers[i / 4]) {
+        planeX += planeCoordinates[2 * i];
+        planeY += planeCoordinates[2 * i + 1];
+        imageX += normalizedCoordinates[2 * i];
+        imageY += normalizedCoordinates[2 * i + 1];
+        count++;
+      }
+    }
+    planeX /= count;
+    planeY /= count;
+    imageX /= count;
+    imageY /= count;
+    double planeScale = 0;
+    double imageScale = 0;
+    for (int i = 0; i < 4 * markerCount; i++) {
+      if (activeMarkers[i / 4]) {
+        planeScale +=
+            Math.hypot(planeCoordinates[2 * i] - planeX, planeCoordinates[2 * i + 1] - planeY);
+        imageScale +=
+            Math.hypot(
+                normalizedCoordinates[2 * i] - imageX, normalizedCoordinates[2 * i + 1] - imageY);
+      }
+    }
+    if (planeScale == 0 || imageScale == 0) {
+      return false;
+    }
+    planeScale = count / planeScale;
+    imageScale = count / imageScale;
+
+    // normal equations of the 8 unknowns, augmented by the right hand side
+    Arrays.fill(normal, 0);
+    for (int i = 0; i < 4 * markerCount; i++) {
+      if (!activeMarkers[i / 4]) {
+        continue;
+      }
+      final double a = (planeCoordinates[2 * i] - planeX) * planeScale;
+      final double b = (planeCoordinates[2 * i + 1] - planeY) * planeScale;
+      final double x = (normalizedCoordinates[2 * i] - imageX) * imageScale;
+      final double y = (normalizedCoordinates[2 * i + 1] - imageY) * imageScale;
+      addEquation(a, b, 1, 0, 0, 0, -a * x, -b * x, x);
+      addEquation(0, 0, 0, a, b, 1, -a * y, -b * y, y);
+    }
+    if (!solveLinear(normal, 8)) {
+      return false;
+    }
+    // undo the normalization: H = T_image^-1 * Hn * T_plane
+    for (int row = 0; row < 3; row++) {
+      final double n0 = row < 2 ? normal[SOLUTION + row * 3] : normal[SOLUTION + 6];
+      final double n1 = row < 2 ? normal[SOLUTION + row * 3 + 1] : normal[SOLUTION + 7];
+      final double n2 = row < 2 ? normal[SOLUTION + row * 3 + 2] : 1;
+      homography[3 * row] = n0 * planeScale;
+      homography[3 * row + 1] = n1 * planeScale;
+      homography[3 * row + 2] = n2 - n0 * planeScale * planeX - n1 * planeScale * planeY;
+    }
+    for (int column = 0; column < 3; column++) {
+      final double third = homography[6 + column];
+      homography[column] = homography[column] / imageScale + imageX * third;
+      homography[3 + column] = homography[3 + column] / imageScale + imageY * third;
+    }
+    return true;
+  }
+
+  /** Adds one equation of the homography to the normal equations. */
+  private void addEquation(
+      double e0, double e1, double e2, double e3, double e4, double e5, double e6, double e7,
+      double rightHandSide) {
+    increment[0] = e0;
+    increment[1] = e1;
+    increment[2] = e2;
+    increment[3] = e3;
+    increment[4] = e4;
+    increment[5] = e5;
+    increment[6] = e6;
+    increment[7] = e7;
+    increment[8] = rightHandSide;
+    for (int row = 0; row < 8; row++) {
+      if (increment[row] == 0) {
+        continue;
+      }
+      for (int column = 0; column < 9; column++) {
+        normal[9 * row + column] += increment[row] * increment[column];
+      }
+    }
+  }
+
+  /** Adds one equation with the residual as right hand side to the Gauss-Newton system. */
+  private void addEquation(
+      double e0, double e1, double e2, double e3, double e4, double e5, double residual) {
+    increment[0] = e0;
+    increment[1] = e1;
+    increment[2] = e2;
+    increment[3] = e3;
+    increment[4] = e4;
+    increment[5] = e5;
+    increment[6] = residual;
+    for (int row = 0; row < 6; row++) {
+      for (int column = 0; column < 7; column++) {
+        normal[7 * row + column] += increment[row] * increment[column];
+      }
+    }
+  }
+
+  /**
+   * Solves the system in the rows of an augmented matrix of n rows and n + 1 columns by Gaussian
+   * elimination with partial pivoting. The solution is written to the last n elements after the
+   * largest matrix.
+   */
+  private static boolean solveLinear(double[] matrix, int n) {
+    final int columns = n + 1;
+    for (int pivot = 0; pivot < n; pivot++) {
+      int best = pivot;
+      for (int row = pivot + 1; row < n; row++) {
+        if (Math.abs(matrix[row * columns + pivot]) > Math.abs(matrix[best * columns + pivot])) {
+          best = row;
+        }
+      }
+      if (Math.abs(matrix[best * columns + pivot]) < 1e-12) {
+        return false;
+      }
+      if (best != pivot) {
+        for (int column = 0; column < columns; column++) {
+          final double swapped = matrix[pivot * columns + column];
+          matrix[pivot * columns + column] = matrix[best * columns + column];
+          matrix[best * columns + column] = swapped;
+        }
+      }
+      for (int row = pivot + 1; row < n; row++) {
+        final double factor = matrix[row * columns + pivot] / matrix[pivot * columns + pivot];
+        for (int column = pivot; column < columns; column++) {
+          matrix[row * columns + column] -= factor * matrix[pivot * columns + column];
+        }
+      }
+    }
+    for (int row = n - 1; row >= 0; row--) {
+      double value = matrix[row * columns + n];
+      for (int column = row + 1; column < n; column++) {
+        value -= matrix[row * columns + column] * matrix[SOLUTION + column];
+      }
+      matrix[SOLUTION + row] = value / matrix[row * columns + row];
+    }
+    return true;
+  }
+
+  /**
+   * Decomposes the homography into rotation and translation of the plane, the columns of the
+   * homography being r1, r2 and t up to scale.
+   */
+  private boolean decomposeHomography() {
+    final double norm1 = norm(homography[0], homography[3], homography[6]);
+    final double norm2 = norm(homography[1], homography[4], homography[7]);
+    if (norm1 == 0 || norm2 == 0) {
+      return false;
+    }
+    // the plane is in front of the camera
+    final double scale = (homography[8] < 0 ? -2 : 2) / (norm1 + norm2);
+    final double r1x = homography[0] / norm1;
+    final double r1y = homography[3] / norm1;
+    final double r1z = homography[6] / norm1;
+    final double r2x = homography[1] / norm2;
+    final double r2y = homography[4] / norm2;
+    final double r2z = homography[7] / norm2;
+    // make the unit vectors r1 and r2 orthogonal, symmetrically about their
+    // bisector, sum and difference of unit vectors are orthogonal
+    final double sign = Math.signum(scale);
+    double sx = (r1x + r2x) * sign;
+    double sy = (r1y + r2y) * sign;
+    double sz = (r1z + r2z) * sign;
+    double dx = (r1x - r2x) * sign;
+    double dy = (r1y - r2y) * sign;
+    double dz = (r1z - r2z) * sign;
+    final double sumNorm = norm(sx, sy, sz);
+    final double differenceNorm = norm(dx, dy, dz);
+    if (sumNorm == 0 || differenceNorm == 0) {
+      return false;
+    }
+    sx /= sumNorm;
+    sy /= sumNorm;
+    sz /= sumNorm;
+    dx /= differenceNorm;
+    dy /= differenceNorm;
+    dz /= differenceNorm;
+    final double half = Math.sqrt(0.5);
+    setColumn(rotation, 0, (sx + dx) * half, (sy + dy) * half, (sz + dz) * half);
+    setColumn(rotation, 1, (sx - dx) * half, (sy - dy) * half, (sz - dz) * half);
+    setColumn(
+        rotation,
+        2,
+        rotation[3] * rotation[7] - rotation[6] * rotation[4],
+        rotation[6] * rotation[1] - rotation[0] * rotation[7],
+        rotation[0] * rotation[4] - rotation[3] * rotation[1]);
+    translation[0] = homography[2] * scale;
+    translation[1] = homography[5] * scale;
+    translation[2] = homography[8] * scale;
+    return true;
+  }
+
+  /**
+   * One Gauss-Newton step on the reprojection error in normalized image coordinates, with the
+   * rotation updated on the left by a small rotation vector.
+   */
+  private boolean refinePose(int markerCount) {
+    Arrays.fill(normal, 0);
+    for (int i = 0; i < 4 * markerCount; i++) {
+      if (!activeMarkers[i / 4]) {
+        continue;
+      }
+      final double a = planeCoordinates[2 * i];
+      final double b = planeCoordinates[2 * i + 1];
+      // the point rotated into the camera frame, before the translation
+      final double qx = rotation[0] * a + rotation[1] * b;
+      final double qy = rotation[3] * a + rotation[4] * b;
+      final double qz = rotation[6] * a + rotation[7] * b;
+      final double px = qx + translation[0];
+      final double py = qy + translation[1];
+      final double pz = qz + translation[2];
+      if (pz <= 0) {
+        return false;
+      }
+      final double inverseZ = 1 / pz;
+      final double x = px * inverseZ;
+      final double y = py * inverseZ;
+      // the projection moves by (1/z, 0, -x/z) and (0, 1/z, -y/z) times the
+      // point, the point by -[q]x w for a rotation w and by t
+      addEquation(
+          -x * qy * inverseZ,
+          (qz + x * qx) * inverseZ,
+          -qy * inverseZ,
+          inverseZ,
+          0,
+          -x * inverseZ,
+          x - normalizedCoordinates[2 * i]);
+      addEquation(
+          -(qz + y * qy) * inverseZ,
+          y * qx * inverseZ,
+          qx * inverseZ,
+          0,
+          inverseZ,
+          -y * inverseZ,
+          y - normalizedCoordinates[2 * i + 1]);
+    }
+    if (!solveLinear(normal, 6)) {
+      return false;
+    }
+    for (int i = 0; i < 6; i++) {
+      step[i] = -normal[SOLUTION + i];
+    }
+    rotationFromVector(step[0], step[1], step[2], increment);
+    multiply(increment, rotation, product);
+    System.arraycopy(product, 0, rotation, 0, 9);
+    translation[0] += step[3];
+    translation[1] += step[4];
+    translation[2] += step[5];
+    return true;
+  }
+
+  /** @return the mean reprojection error of a marker in pixels */
+  private double markerError(int marker) {
+    double error = 0;
+    for (int i = 4 * marker; i < 4 * marker + 4; i++) {
+      final double a = planeCoordinates[2 * i];
+      final double b = planeCoordinates[2 * i + 1];
+      final double pz = rotation[6] * a + rotation[7] * b + translation[2];
+      final double x = (rotation[0] * a + rotation[1] * b + translation[0]) / pz;
+      final double y = (rotation[3] * a + rotation[4] * b + translation[1]) / pz;
+      error +=
+          Math.hypot(
+              (x - normalizedCoordinates[2 * i]) * fx, (y - normalizedCoordinates[2 * i + 1]) * fy);
+    }
+    return error / 4;
+  }
+
+  /**
+   * Converts the pose of the plane frame to the pose of the map frame: R = R_plane * A^T and
+   * t = t_plane - R * origin, A having the plane axes as columns.
+   */
+  private void toMapPose() {
+    for (int row = 0; row < 3; row++) {
+      for (int column = 0; column < 3; column++) {
+        product[3 * row + column] =
+            rotation[3 * row] * axes[column]
+                + rotation[3 * row + 1] * axes[3 + column]
+                + rotation[3 * row + 2] * axes[6 + column];
+      }
+    }
+    for (int row = 0; row < 3; row++) {
+      tvecValues[row] =
+          translation[row]
+              - product[3 * row] * origin[0]
+              - product[3 * row + 1] * origin[1]
+              - product[3 * row + 2] * origin[2];
+    }
+    rotationToVector(product, rvecValues);
+  }
+
+  private static void setColumn(double[] matrix, int column, double x, double y, double z) {
+    matrix[column] = x;
+    matrix[3 + column] = y;
+    matrix[6 + column] = z;
+  }
+
+  private static void multiply(double[] left, double[] right, double[] result) {
+    for (int row = 0; row < 3; row++) {
+      for (int column = 0; column < 3; column++) {
+        result[3 * row + column] =
+            left[3 * row] * right[column]
+                + left[3 * row + 1] * right[3 + column]
+                + left[3 * row + 2] * right[6 + column];
+      }
+    }
+  }
+
+  /** Rodrigues' formula, the rotation matrix of a rotation vector. */
+  static void rotationFromVector(double wx, double wy, double wz, double[] matrix) {
+    final double angle = norm(wx, wy, wz);
+    final double sin;
+    final double oneMinusCos;
+    if (angle < 1e-12) {
+      sin = 1;
+      oneMinusCos = 0.5;
+    } else {
+      sin = Math.sin(angle) / angle;
+      oneMinusCos = (1 - Math.cos(angle)) / (angle * angle);
+    }
+    matrix[0] = 1 - oneMinusCos * (wy * wy + wz * wz);
+    matrix[1] = -sin * wz + oneMinusCos * wx * wy;
+    matrix[2] = sin * wy + oneMinusCos * wx * wz;
+    matrix[3] = sin * wz + oneMinusCos * wx * wy;
+    matrix[4] = 1 - oneMinusCos * (wx * wx + wz * wz);
+    matrix[5] = -sin * wx + oneMinusCos * wy * wz;
+    matrix[6] = -sin * wy + oneMinusCos * wx * wz;
+    matrix[7] = sin * wx + oneMinusCos * wy * wz;
+    matrix[8] = 1 - oneMinusCos * (wx * wx + wy * wy);
+  }
+
+  /** The rotation vector of a rotation matrix, also for angles close to zero and pi. */
+  static void rotationToVector(double[] matrix, double[] vector) {
+    final double cos = Math.max(-1, Math.min(1, (matrix[0] + matrix[4] + matrix[8] - 1) / 2));
+    final double angle = Math.acos(cos);
+    final double rx = matrix[7] - matrix[5];
+    final double ry = matrix[2] - matrix[6];
+    final double rz = matrix[3] - matrix[1];
+    if (angle < 1e-6) {
+      vector[0] = rx / 2;
+      vector[1] = ry / 2;
+      vector[2] = rz / 2;
+    } else if (Math.PI - angle < 1e-4) {
+      // the axis from the diagonal, the signs from the largest component
+      double x = Math.sqrt(Math.max(0, (matrix[0] + 1) / 2));
+      double y = Math.sqrt(Math.max(0, (matrix[4] + 1) / 2));
+      double z = Math.sqrt(Math.max(0, (matrix[8] + 1) / 2));
+      if (x >= y && x >= z) {
+        y = Math.copySign(y, matrix[1] + matrix[3]);
+        z = Math.copySign(z, matrix[2] + matrix[6]);
+      } else if (y >= z) {
+        x = Math.copySign(x, matrix[1] + matrix[3]);
+        z = Math.copySign(z, matrix[5] + matrix[7]);
+      } else {
+        x = Math.copySign(x, matrix[2] + matrix[6]);
+        y = Math.copySign(y, matrix[5] + matrix[7]);
+      }
+      final double length = norm(x, y, z);
+      vector[0] = x / length * angle;
+      vector[1] = y / length * angle;
+      vector[2] = z / length * angle;
+    } else {
+      final double scale = angle / (2 * Math.sin(angle));
+      vector[0] = rx * scale;
+      vector[1] = ry * scale;
+      vector[2] = rz * scale;
+    }
+  }
+
+  private static double norm(double x, double y, double z) {
+    return Math.sqrt(x * x + y * y + z * z);
+  }
+}
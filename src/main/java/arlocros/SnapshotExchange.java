@@ -0,0 +1,141 @@
+package arlocros;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Hands immutable values from a producer to any number of consumers without locks. Every
+ * published value gets the next sequence number and replaces the previous one, so a consumer
+ * always gets the latest value. Each consumer reads through its own {@link Cursor}, which tells
+ * from the sequence numbers how many values it has missed.
+ *
+ * <p>Publishing never blocks. Waiting consumers are parked and unparked by the producer, a value
+ * published while a consumer is busy is found when it comes back.
+ *
+ * @param <T> the type of the values, which must be immutable
+ */
+public final class SnapshotExchange<T> {
+
+  private final AtomicReference<Snapshot<T>> latest = new AtomicReference<>();
+  private final List<Cursor<T>> cursors = new CopyOnWriteArrayList<>();
+
+  private SnapshotExchange() {}
+
+  public static <T> SnapshotExchange<T> create() {
+    return new SnapshotExchange<>();
+  }
+
+  /** Publishes a value as the next snapshot and wakes up the waiting consumers. */
+  public void publish(T value) {
+    checkNotNull(value);
+    Snapshot<T> previous;
+    Snapshot<T> next;
+    do {
+      previous = latest.get();
+      next = new Snapshot<>(previous == null ? 1 : previous.sequence + 1, value);
+    } while (!latest.compareAndSet(previous, next));
+    for (final Cursor<T> cursor : cursors) {
+      final Thread waiter = cursor.waiter;
+      if (waiter != null) {
+        LockSupport.unpark(waiter);
+      }
+    }
+  }
+
+  /** @return the sequence number of the latest snapshot, zero if nothing has been published */
+  public long sequence() {
+    final Snapshot<T> snapshot = latest.get();
+    return snapshot == null ? 0 : snapshot.sequence;
+  }
+
+  /**
+   * Creates a cursor for a consumer. The cursor starts after the latest snapshot, so values
+   * published before it existed are not counted as missed.
+   */
+  public Cursor<T> newCursor() {
+    final Cursor<T> cursor = new Cursor<>(this, sequence());
+    cursors.add(cursor);
+    return cursor;
+  }
+
+  /** A published value and its sequence number. */
+  public static final class Snapshot<T> {
+    private final long sequence;
+    private final T value;
+
+    private Snapshot(long sequence, T value) {
+      this.sequence = sequence;
+      this.value = value;
+    }
+
+    public long sequence() {
+      return sequence;
+    }
+
+    public T value() {
+      return value;
+    }
+  }
+
+  /**
+   * The read position of one consumer. A cursor is used by a single thread, its statistics may be
+   * read from any thread.
+   */
+  public static final class Cursor<T> {
+    private final SnapshotExchange<T> exchange;
+    private final AtomicLong taken = new AtomicLong();
+    private final AtomicLong missed = new AtomicLong();
+    private long lastSequence;
+    private volatile Thread waiter;
+
+    private Cursor(SnapshotExchange<T> exchange, long lastSequence) {
+      this.exchange = exchange;
+      this.lastSequence = lastSequence;
+    }
+
+    /**
+     * Waits for a snapshot newer than the last one taken. Snapshots published in between are
+     * skipped and counted as missed.
+     */
+    public Snapshot<T> take() throws InterruptedException {
+      Snapshot<T> snapshot = exchange.latest.get();
+      while (snapshot == null || snapshot.sequence <= lastSequence) {
+        // register before checking again, so that a publish in between unparks this thread
+        waiter = Thread.currentThread();
+        snapshot = exchange.latest.get();
+        if (snapshot == null || snapshot.sequence <= lastSequence) {
+          LockSupport.park(this);
+          snapshot = exchange.latest.get();
+        }
+        waiter = null;
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+      missed.addAndGet(snapshot.sequence - lastSequence - 1);
+      taken.incrementAndGet();
+      lastSequence = snapshot.sequence;
+      return snapshot;
+    }
+
+    /** @return number of snapshots taken */
+    public long taken() {
+      return taken.get();
+    }
+
+    /** @return number of snapshots published after the cursor was created but never taken */
+    public long missed() {
+      return missed.get();
+    }
+
+    @Override
+    public String toString() {
+      return String.format("taken %d, missed %d", taken(), missed());
+    }
+  }
+}
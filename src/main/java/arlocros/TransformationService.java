@@ -2,6 +2,7 @@ package arlocros;
 
 import geometry_msgs.TransformStamped;
 import org.ros.message.MessageListener;
+import org.ros.message.Time;
 import org.ros.namespace.GraphName;
 import org.ros.node.ConnectedNode;
 import org.ros.node.topic.Subscriber;
@@ -20,8 +21,11 @@ public final class TransformationService implements MessageListener<TFMessage> {
         this.transformer = transformer;
     }
 
-    public static TransformationService create(ConnectedNode connectedNode) {
-        final Transformer transformer = Transformer.create();
+    /**
+     * @param historySize the number of transforms kept per frame
+     */
+    public static TransformationService create(ConnectedNode connectedNode, int historySize) {
+        final Transformer transformer = Transformer.create(historySize);
         transformer.setPrefix(GraphName.of(connectedNode.getParameterTree().getString("~tf_prefix", "")));
         final TransformationService transformationService = new TransformationService(transformer);
         final Subscriber<TFMessage> tfSubscriber = connectedNode.newSubscriber(GraphName.of("tf"),
@@ -44,4 +48,12 @@ public final class TransformationService implements MessageListener<TFMessage> {
     public Transform lookupTransform(GraphName targetFrame, GraphName sourceFrame) {
         return transformer.lookupTransform(targetFrame, sourceFrame);
     }
+
+    /**
+     * Returns the transform at the given time, interpolated between the
+     * transforms received before and after it.
+     */
+    public Transform lookupTransform(GraphName targetFrame, GraphName sourceFrame, Time time) {
+        return transformer.lookupTransform(targetFrame, sourceFrame, time);
+    }
 }
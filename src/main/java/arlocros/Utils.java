@@ -22,21 +22,31 @@ import org.opencv.core.Mat;
 import org.opencv.imgproc.Imgproc;
 import sensor_msgs.Image;
 
-import java.util.Arrays;
-
 public class Utils {
 
+  /**
+   * Converts an rgb8 image message to a newly allocated Mat. Use an {@link ImageDecoder} to reuse
+   * the Mat between frames.
+   */
   static public Mat matFromImage(final Image source) throws Exception {
-    byte[] imageInBytes = source.getData().array();
-    imageInBytes = Arrays.copyOfRange(imageInBytes, source.getData().arrayOffset(),
-        imageInBytes.length);
-    Mat cvImage = new Mat(source.getHeight(), source.getWidth(), CvType.CV_8UC3);
-    cvImage.put(0, 0, imageInBytes);
-    return cvImage;
+    return ImageDecoder.create().decode(source, new Mat(), CvType.CV_8UC3);
   }
 
+  /**
+   * Binarizes the image. Color images are converted to gray first and back to RGB afterwards,
+   * single-channel luminance images are thresholded in place.
+   */
   static public void tresholdContrastBlackWhite(Mat image2, double d,
       boolean invertBlackWhiteColor) {
+    tresholdContrastBlackWhite(image2, image2, d, invertBlackWhiteColor);
+  }
+
+  /**
+   * Binarizes the source image into the destination, which gets the type of the source. The source
+   * is not modified unless it is the destination.
+   */
+  static public void tresholdContrastBlackWhite(Mat source, Mat destination, double d,
+      boolean invertBlackWhiteColor) {
 //		int width = image2.width();
 //		int height = image2.height();
 //		for (int i = 0; i < width; i++)
@@ -50,15 +60,22 @@ public class Utils {
 //				image2.put(j, i, rgbnew);
 //			}
 
-    final Mat transformMat = new Mat(1, 3, CvType.CV_64FC1);
-    final int row = 0;
-    final int col = 0;
-    transformMat.put(row, col, 0.33, 0.33, 0.34);
-    Core.transform(image2, image2, transformMat);
-    Imgproc.threshold(image2, image2, d / 3, 255, Imgproc.THRESH_BINARY);
+    final boolean color = source.channels() > 1;
+    if (color) {
+      final Mat transformMat = new Mat(1, 3, CvType.CV_64FC1);
+      final int row = 0;
+      final int col = 0;
+      transformMat.put(row, col, 0.33, 0.33, 0.34);
+      Core.transform(source, destination, transformMat);
+      Imgproc.threshold(destination, destination, d / 3, 255, Imgproc.THRESH_BINARY);
+    } else {
+      Imgproc.threshold(source, destination, d / 3, 255, Imgproc.THRESH_BINARY);
+    }
     if (invertBlackWhiteColor) {
-      Core.bitwise_not(image2, image2);
+      Core.bitwise_not(destination, destination);
+    }
+    if (color) {
+      Imgproc.cvtColor(destination, destination, Imgproc.COLOR_GRAY2RGB);
     }
-    Imgproc.cvtColor(image2, image2, Imgproc.COLOR_GRAY2RGB);
   }
 }
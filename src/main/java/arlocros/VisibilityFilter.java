@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2016 Marvin Ferber.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package arlocros;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Mat;
+import org.opencv.core.Point3;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Predicts which markers are visible from the last good camera pose. The
+ * corners of each marker are projected through the camera intrinsics, a
+ * marker is kept if any of its corners is in front of the camera and its
+ * projection overlaps the image enlarged by a margin. The edges of a marker
+ * crossing the image plane of the camera are clipped before the projection,
+ * so a marker close to the camera is kept as long as its visible part
+ * overlaps the image. Lens distortion is ignored, the margin covers it.
+ * <p>
+ * The pose is set by the thread solving the poses and read by the thread
+ * detecting the markers. All buffers are kept between frames.
+ */
+final class VisibilityFilter {
+
+	// distance in front of the camera at which the marker edges are clipped
+	private static final double NEAR_PLANE = 1.0E-3;
+
+	private final double fx;
+	private final double fy;
+	private final double cx;
+	private final double cy;
+	private final int width;
+	private final int height;
+	private final double margin;
+	private final long maxPoseAgeNanos;
+	// x, y, z of the four corners of each marker
+	private final double[][] markerCorners;
+	private final Mat rotation = new Mat();
+	// last pose, written by the solving thread, guarded by this
+	private final double[] poseRotation = new double[9];
+	private final double[] poseTranslation = new double[3];
+	private long poseNanos;
+	private boolean hasPose;
+	// copy of the pose and buffers of the detecting thread
+	private final double[] r = new double[9];
+	private final double[] t = new double[3];
+	private final double[] cameraCorners = new double[12];
+	private final BitSet visible;
+	private double minU;
+	private double minV;
+	private double maxU;
+	private double maxV;
+
+	private VisibilityFilter(MarkerConfig markerConfig, List<String> markerPatterns, Mat cameraMatrix, int width,
+			int height, double margin, long maxPoseAgeMillis) {
+		this.fx = cameraMatrix.get(0, 0)[0];
+		this.fy = cameraMatrix.get(1, 1)[0];
+		this.cx = cameraMatrix.get(0, 2)[0];
+		this.cy = cameraMatrix.get(1, 2)[0];
+		this.width = width;
+		this.height = height;
+		this.margin = margin;
+		this.maxPoseAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxPoseAgeMillis);
+		markerCorners = new double[markerPatterns.size()][];
+		for (int i = 0; i < markerPatterns.size(); i++) {
+			final List<Point3> corners = markerConfig.create3dpointlist(markerPatterns.get(i));
+			markerCorners[i] = new double[3 * corners.size()];
+			for (int j = 0; j < corners.size(); j++) {
+				markerCorners[i][3 * j] = corners.get(j).x;
+				markerCorners[i][3 * j + 1] = corners.get(j).y;
+				markerCorners[i][3 * j + 2] = corners.get(j).z;
+			}
+		}
+		visible = new BitSet(markerCorners.length);
+	}
+
+	/**
+	 * @param markerPatterns
+	 *            pattern file of each marker, the indices of the visible
+	 *            markers refer to this list
+	 * @param margin
+	 *            pixels by which the image is enlarged on each side
+	 * @param maxPoseAgeMillis
+	 *            poses older than this are not used for predictions
+	 */
+	static VisibilityFilter create(MarkerConfig markerConfig, List<String> markerPatterns, Mat cameraMatrix,
+			int width, int height, double margin, long maxPoseAgeMillis) {
+		return new VisibilityFilter(markerConfig, markerPatterns, cameraMatrix, width, height, margin,
+				maxPoseAgeMillis);
+	}
+
+	/**
+	 * Sets the last good pose, the transformation from marker to camera
+	 * coordinates as computed by solvePnP.
+	 */
+	synchronized void update(Mat rvec, Mat tvec) {
+		Calib3d.Rodrigues(rvec, rotation);
+		rotation.get(0, 0, poseRotation);
+		tvec.get(0, 0, poseTranslation);
+		poseNanos = System.nanoTime();
+		hasPose = true;
+	}
+
+	/**
+	 * @return the indices of the markers predicted to be visible, or null if
+	 *         there is no recent pose or no marker is predicted to be visible.
+	 *         The set is reused by the next call.
+	 */
+	BitSet visibleMarkers() {
+		synchronized (this) {
+			if (!hasPose || System.nanoTime() - poseNanos > maxPoseAgeNanos) {
+				return null;
+			}
+			System.arraycopy(poseRotation, 0, r, 0, r.length);
+			System.arraycopy(poseTranslation, 0, t, 0, t.length);
+		}
+		visible.clear();
+		for (int i = 0; i < markerCorners.length; i++) {
+			if (isVisible(markerCorners[i])) {
+				visible.set(i);
+			}
+		}
+		return visible.isEmpty() ? null : visible;
+	}
+
+	private boolean isVisible(double[] corners) {
+		final int cornerCount = corners.length / 3;
+		boolean anyInFront = false;
+		for (int j = 0; j < corners.length; j += 3) {
+			final double x = corners[j];
+			final double y = corners[j + 1];
+			final double z = corners[j + 2];
+			cameraCorners[j] = r[0] * x + r[1] * y + r[2] * z + t[0];
+			cameraCorners[j + 1] = r[3] * x + r[4] * y + r[5] * z + t[1];
+			cameraCorners[j + 2] = r[6] * x + r[7] * y + r[8] * z + t[2];
+			anyInFront |= cameraCorners[j + 2] > NEAR_PLANE;
+		}
+		if (!anyInFront) {
+			return false;
+		}
+		// bounding box of the projected corners in front of the camera and of
+		// the points where the edges cross the near plane
+		minU = Double.MAX_VALUE;
+		minV = Double.MAX_VALUE;
+		maxU = -Double.MAX_VALUE;
+		maxV = -Double.MAX_VALUE;
+		for (int c = 0; c < cornerCount; c++) {
+			final int j = 3 * c;
+			final int k = 3 * ((c + 1) % cornerCount);
+			final double zj = cameraCorners[j + 2];
+			final double zk = cameraCorners[k + 2];
+			if (zj > NEAR_PLANE) {
+				addProjection(cameraCorners[j], cameraCorners[j + 1], zj);
+			}
+			if ((zj > NEAR_PLANE) != (zk > NEAR_PLANE)) {
+				final double s = (NEAR_PLANE - zj) / (zk - zj);
+				addProjection(cameraCorners[j] + s * (cameraCorners[k] - cameraCorners[j]),
+						cameraCorners[j + 1] + s * (cameraCorners[k + 1] - cameraCorners[j + 1]), NEAR_PLANE);
+			}
+		}
+		return maxU >= -margin && minU < width + margin && maxV >= -margin && minV < height + margin;
+	}
+
+	private void addProjection(double x, double y, double z) {
+		final double u = fx * x / z + cx;
+		final double v = fy * y / z + cy;
+		minU = Math.min(minU, u);
+		minV = Math.min(minV, v);
+		maxU = Math.max(maxU, u);
+		maxV = Math.max(maxV, v);
+	}
+}
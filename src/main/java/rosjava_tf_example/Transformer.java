@@ -17,43 +17,71 @@
  * /visualization/?repo=android&r=07c00460a3826b976c153ea57353a54a4b275e37
  */
 
+
 package rosjava_tf_example;
 
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import geometry_msgs.TransformStamped;
+import org.ros.message.Time;
 import org.ros.namespace.GraphName;
+import org.ros.rosjava_geometry.Quaternion;
 import org.ros.rosjava_geometry.Transform;
+import org.ros.rosjava_geometry.Vector3;
 
 import javax.annotation.Nullable;
 import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Very simple implementation of a TF transformer.
  * <p>
- * Currently, the class does not support time. Lookups always use the newest
- * transforms.
+ * The transforms of each frame are kept in a bounded history ordered by
+ * their stamps. A lookup at a given time interpolates between the two
+ * transforms around it, linearly for the translation and by spherical
+ * linear interpolation (SLERP) for the rotation. Before the oldest and after
+ * the newest transform of a frame, that transform is used. Lookups without a
+ * time, or at time zero, use the newest transforms.
+ * <p>
+ * The history of a frame is stored in primitive ring buffers of
+ * 64 bytes per transform, so a frame takes at most 64 bytes times the history
+ * size regardless of the rate its transforms are published at.
  *
  * @author moesenle@google.com (Lorenz Moesenlechner)
  */
 public final class Transformer {
 
     /**
-     * Mapping from child frame IDs to their respective transforms.
+     * Default number of transforms kept per frame, a few seconds of transforms
+     * published at the usual rates.
+     */
+    public static final int DEFAULT_HISTORY_SIZE = 100;
+
+    /**
+     * Mapping from child frame IDs to the history of their transforms.
      */
-    private final Map<GraphName, TransformStamped> transforms;
+    private final ConcurrentMap<GraphName, FrameHistory> transforms;
+    private final int historySize;
 
     @Nullable private GraphName prefix;
 
-    private Transformer() {
+    private Transformer(int historySize) {
         transforms = Maps.newConcurrentMap();
+        this.historySize = historySize;
     }
 
     public static Transformer create() {
-        return new Transformer();
+        return create(DEFAULT_HISTORY_SIZE);
+    }
+
+    /**
+     * @param historySize the number of transforms kept per frame
+     */
+    public static Transformer create(int historySize) {
+        Preconditions.checkArgument(historySize > 0, "The history size must be positive, but it is " + historySize);
+        return new Transformer(historySize);
     }
 
     /**
@@ -62,12 +90,26 @@ public final class Transformer {
      * @param transform the transform to add
      */
     public void updateTransform(TransformStamped transform) {
-        final GraphName frame = GraphName.of(transform.getChildFrameId());
-        transforms.put(makeFullyQualified(frame), transform);
+        final GraphName frame = makeFullyQualified(GraphName.of(transform.getChildFrameId()));
+        FrameHistory history = transforms.get(frame);
+        if (history == null) {
+            final FrameHistory created = new FrameHistory(historySize);
+            history = transforms.putIfAbsent(frame, created);
+            if (history == null) {
+                history = created;
+            }
+        }
+        history.add(transform, makeFullyQualified(GraphName.of(transform.getHeader().getFrameId())));
     }
 
+    /**
+     * Returns the newest transform of a frame, or null if the frame is
+     * unknown.
+     */
+    @Nullable
     public TransformStamped getTransform(GraphName frame) {
-        return transforms.get(makeFullyQualified(frame));
+        final FrameHistory history = transforms.get(makeFullyQualified(frame));
+        return history == null ? null : history.newestMessage();
     }
 
     /**
@@ -85,8 +127,8 @@ public final class Transformer {
         if (targetFrame.equals(sourceFrame)) {
             return true;
         }
-        List<Transform> downTransforms = transformsToRoot(sourceFrame);
-        List<Transform> upTransforms = transformsToRoot(targetFrame);
+        List<Transform> downTransforms = transformsToRoot(sourceFrame, null);
+        List<Transform> upTransforms = transformsToRoot(targetFrame, null);
         if (downTransforms.size() == 0 && upTransforms.size() == 0) {
             return false;
         }
@@ -98,18 +140,29 @@ public final class Transformer {
     }
 
     /**
-     * Returns the list of transforms to apply to transform from source frame to
-     * target frame.
+     * Returns the list of the newest transforms to apply to transform from
+     * source frame to target frame.
      *
      * @return list of transforms from source frame to target frame
      */
     public List<Transform> lookupTransforms(GraphName targetFrame, GraphName sourceFrame) {
+        return lookupTransforms(targetFrame, sourceFrame, null);
+    }
+
+    /**
+     * Returns the list of transforms to apply to transform from source frame to
+     * target frame at the given time.
+     *
+     * @param time the time of the transforms, or null for the newest transforms
+     * @return list of transforms from source frame to target frame
+     */
+    public List<Transform> lookupTransforms(GraphName targetFrame, GraphName sourceFrame, @Nullable Time time) {
         List<Transform> result = Lists.newArrayList();
         if (makeFullyQualified(targetFrame).equals(makeFullyQualified(sourceFrame))) {
             return result;
         }
-        List<Transform> upTransforms = transformsToRoot(sourceFrame);
-        List<Transform> downTransforms = transformsToRoot(targetFrame);
+        List<Transform> upTransforms = transformsToRoot(sourceFrame, time);
+        List<Transform> downTransforms = transformsToRoot(targetFrame, time);
         // TODO(moesenle): Check that if the transform chain has 0 length the
         // frame
         // id is the root frame.
@@ -131,10 +184,20 @@ public final class Transformer {
     }
 
     /**
-     * Returns the transform from source frame to target frame.
+     * Returns the newest transform from source frame to target frame.
      */
     public Transform lookupTransform(GraphName targetFrame, GraphName sourceFrame) {
-        List<Transform> transforms = lookupTransforms(targetFrame, sourceFrame);
+        return lookupTransform(targetFrame, sourceFrame, null);
+    }
+
+    /**
+     * Returns the transform from source frame to target frame at the given
+     * time.
+     *
+     * @param time the time of the transform, or null for the newest transform
+     */
+    public Transform lookupTransform(GraphName targetFrame, GraphName sourceFrame, @Nullable Time time) {
+        List<Transform> transforms = lookupTransforms(targetFrame, sourceFrame, time);
         Transform result = Transform.identity();
         for (Transform transform : transforms) {
             result = result.multiply(transform);
@@ -157,23 +220,32 @@ public final class Transformer {
 
     /**
      * Returns the list of transforms from frame to the root of the transform
-     * tree. Note: the root of the tree is always the last transform in the
-     * list.
+     * tree at the given time. Note: the root of the tree is always the last
+     * transform in the list.
      *
      * @param frame the start frame
+     * @param time  the time of the transforms, or null for the newest
+     *              transforms
      * @return the list of transforms from frame to root
      */
-    private List<Transform> transformsToRoot(GraphName frame) {
+    private List<Transform> transformsToRoot(GraphName frame, @Nullable Time time) {
+        final long stampNanos = time == null ? 0 : time.totalNsecs();
         GraphName qualifiedFrame = makeFullyQualified(frame);
         List<Transform> result = Lists.newArrayList();
         while (true) {
             //System.out.print(qualifiedFrame+ " --> ");
-            TransformStamped currentTransform = transforms.get(qualifiedFrame);
-            if (currentTransform == null) {
+            FrameHistory history = transforms.get(qualifiedFrame);
+            if (history == null) {
                 break;
             }
-            result.add(Transform.fromTransformMessage(currentTransform.getTransform()));
-            qualifiedFrame = makeFullyQualified(GraphName.of((currentTransform.getHeader().getFrameId())));
+            synchronized (history) {
+                if (history.size == 0) {
+                    // the first transform of the frame is just being added
+                    break;
+                }
+                result.add(history.lookup(stampNanos));
+                qualifiedFrame = history.parent;
+            }
         }
         //System.out.println();
         return result;
@@ -196,7 +268,8 @@ public final class Transformer {
     }
 
     /**
-     * Transforms a geometry_msgs.PoseStamped message to frame targetFrame
+     * Transforms a geometry_msgs.PoseStamped message to frame targetFrame at
+     * the time it is stamped with.
      * WARNING: this changes the original PoseStamped message (like the other
      * messages in rosjava_geometry)!!!
      *
@@ -206,9 +279,173 @@ public final class Transformer {
     public void transformPose(GraphName targetFrame, geometry_msgs.PoseStamped pose) {
         Transform poseTrans = Transform.fromPoseMessage(pose.getPose());
         Transform frameTrans = this.lookupTransform(makeFullyQualified(GraphName.of(pose.getHeader().getFrameId())),
-                makeFullyQualified(targetFrame));
+                makeFullyQualified(targetFrame), pose.getHeader().getStamp());
         Transform resultTrans = frameTrans.multiply(poseTrans);
 
         resultTrans.toPoseStampedMessage(makeFullyQualified(targetFrame), pose.getHeader().getStamp(), pose);
     }
+
+    /**
+     * The transforms of one child frame ordered by their stamps, the oldest
+     * transform is replaced when the history is full. All access is
+     * synchronized on the history.
+     */
+    private static final class FrameHistory {
+
+        // translation x, y, z and rotation x, y, z, w of a transform
+        private static final int VALUES = 7;
+        // below this angle between two rotations they are interpolated linearly
+        private static final double SLERP_THRESHOLD = 1e-6;
+
+        private final long[] stamps;
+        private final double[] values;
+        // index of the oldest transform in the ring buffers
+        private int start;
+        private int size;
+        private GraphName parent;
+        private TransformStamped newestMessage;
+
+        private FrameHistory(int capacity) {
+            stamps = new long[capacity];
+            values = new double[VALUES * capacity];
+        }
+
+        synchronized void add(TransformStamped message, GraphName parentFrame) {
+            if (!parentFrame.equals(parent)) {
+                // the frame has been moved in the tree, its old transforms are
+                // meaningless now
+                parent = parentFrame;
+                size = 0;
+            }
+            final long stamp = message.getHeader().getStamp().totalNsecs();
+            // transforms usually arrive in order, so search from the newest
+            int position = size;
+            while (position > 0 && stamps[index(position - 1)] > stamp) {
+                position--;
+            }
+            if (position > 0 && stamps[index(position - 1)] == stamp) {
+                // a transform with the same stamp is replaced
+                position--;
+            } else {
+                if (size == stamps.length) {
+                    if (position == 0) {
+                        // older than the whole full history
+                        return;
+                    }
+                    // drop the oldest transform
+                    start = index(1);
+                    size--;
+                    position--;
+                }
+                for (int i = size; i > position; i--) {
+                    stamps[index(i)] = stamps[index(i - 1)];
+                    System.arraycopy(values, VALUES * index(i - 1), values, VALUES * index(i), VALUES);
+                }
+                size++;
+            }
+            final int slot = index(position);
+            final geometry_msgs.Transform transform = message.getTransform();
+            stamps[slot] = stamp;
+            values[VALUES * slot] = transform.getTranslation().getX();
+            values[VALUES * slot + 1] = transform.getTranslation().getY();
+            values[VALUES * slot + 2] = transform.getTranslation().getZ();
+            values[VALUES * slot + 3] = transform.getRotation().getX();
+            values[VALUES * slot + 4] = transform.getRotation().getY();
+            values[VALUES * slot + 5] = transform.getRotation().getZ();
+            values[VALUES * slot + 6] = transform.getRotation().getW();
+            if (position == size - 1) {
+                newestMessage = message;
+            }
+        }
+
+        synchronized TransformStamped newestMessage() {
+            return newestMessage;
+        }
+
+        /**
+         * @param stamp the time in nanoseconds, zero or less for the newest
+         *              transform
+         */
+        Transform lookup(long stamp) {
+            if (stamp <= 0 || stamp >= stamps[index(size - 1)]) {
+                return transform(index(size - 1));
+            }
+            if (stamp <= stamps[start]) {
+                return transform(start);
+            }
+            // the first transform not older than the stamp
+            int low = 1;
+            int high = size - 1;
+            while (low < high) {
+                final int middle = (low + high) >>> 1;
+                if (stamps[index(middle)] < stamp) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            final int after = index(low);
+            final int before = index(low - 1);
+            if (stamps[after] == stamp) {
+                return transform(after);
+            }
+            final double ratio = (stamp - stamps[before]) / (double) (stamps[after] - stamps[before]);
+            return interpolate(before, after, ratio);
+        }
+
+        private Transform interpolate(int before, int after, double ratio) {
+            final int b = VALUES * before;
+            final int a = VALUES * after;
+            final Vector3 translation = new Vector3(
+                    values[b] + ratio * (values[a] - values[b]),
+                    values[b + 1] + ratio * (values[a + 1] - values[b + 1]),
+                    values[b + 2] + ratio * (values[a + 2] - values[b + 2]));
+
+            final double beforeNorm = norm(b + 3);
+            final double afterNorm = norm(a + 3);
+            double cos = (values[b + 3] * values[a + 3] + values[b + 4] * values[a + 4]
+                    + values[b + 5] * values[a + 5] + values[b + 6] * values[a + 6]) / (beforeNorm * afterNorm);
+            // q and -q are the same rotation, take the shorter way
+            double afterSign = 1;
+            if (cos < 0) {
+                cos = -cos;
+                afterSign = -1;
+            }
+            final double angle = Math.acos(Math.min(1, cos));
+            double beforeWeight = 1 - ratio;
+            double afterWeight = ratio;
+            if (angle > SLERP_THRESHOLD) {
+                final double sin = Math.sin(angle);
+                beforeWeight = Math.sin((1 - ratio) * angle) / sin;
+                afterWeight = Math.sin(ratio * angle) / sin;
+            }
+            beforeWeight /= beforeNorm;
+            afterWeight *= afterSign / afterNorm;
+            final double x = beforeWeight * values[b + 3] + afterWeight * values[a + 3];
+            final double y = beforeWeight * values[b + 4] + afterWeight * values[a + 4];
+            final double z = beforeWeight * values[b + 5] + afterWeight * values[a + 5];
+            final double w = beforeWeight * values[b + 6] + afterWeight * values[a + 6];
+            final double norm = Math.sqrt(x * x + y * y + z * z + w * w);
+            return new Transform(translation, new Quaternion(x / norm, y / norm, z / norm, w / norm));
+        }
+
+        private double norm(int offset) {
+            return Math.sqrt(values[offset] * values[offset] + values[offset + 1] * values[offset + 1]
+                    + values[offset + 2] * values[offset + 2] + values[offset + 3] * values[offset + 3]);
+        }
+
+        private Transform transform(int slot) {
+            final int offset = VALUES * slot;
+            return new Transform(new Vector3(values[offset], values[offset + 1], values[offset + 2]),
+                    new Quaternion(values[offset + 3], values[offset + 4], values[offset + 5], values[offset + 6]));
+        }
+
+        /**
+         * @return the position in the ring buffers of the transform with the
+         *         given age rank, 0 being the oldest
+         */
+        private int index(int rank) {
+            return (start + rank) % stamps.length;
+        }
+    }
 }